@@ -19,8 +19,13 @@
 package org.bedework.access;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 /** Class to handle access control. Because we may be evaluating access
  * frequently we try do so without creating (many) objects.
@@ -169,6 +174,31 @@ public class Access implements Serializable {
     public String makeHref(String id, int whoType) throws AccessException;
   }
 
+  /** Callback for principal roots which does not block the caller. Futures
+   * should complete exceptionally with an AccessException on error.
+   */
+  public interface AsyncAccessCb {
+    /**
+     * @param id account
+     * @param whoType - from WhoDefs
+     * @return future String href
+     */
+    CompletableFuture<String> makeHref(String id, int whoType);
+
+    /** The default calls AccessPrincipal.getGroupNames in the common
+     * ForkJoinPool so that the caller is not blocked. Override this if the
+     * group names have to be fetched, so that the fetch does not tie up a
+     * thread of the pool.
+     *
+     * @param who principal
+     * @return future group names - may complete with null for none
+     */
+    default CompletableFuture<Collection<String>> getGroupNames(
+            final AccessPrincipal who) {
+      return CompletableFuture.supplyAsync(who::getGroupNames);
+    }
+  }
+
   /** Get the access statistics
    *
    * @return String value for default access
@@ -246,10 +276,189 @@ public class Access implements Serializable {
                                       PrivilegeSet filter)
           throws AccessException {
     return EvaluatedAccessCache.evaluateAccess(cb, who, owner, how,
-                                               aclString.toCharArray(),
+                                               (CharSequence)aclString,
                                                filter);
   }
 
+  /** convenience method for an acl held in a CharBuffer or other
+   * CharSequence, for example a slice of a larger buffer. The acl is not
+   * copied unless we need to evaluate it.
+   *
+   * @param cb       callback
+   * @param who      Acl.Principal defining who is trying to get access
+   * @param owner    owner of object
+   * @param how      Privilege set defining desired access
+   * @param acl      CharSequence defining current acls for object
+   * @param filter    if not null specifies maximum access
+   * @return CurrentAccess   access + allowed/disallowed
+   * @throws AccessException on error
+   */
+  public CurrentAccess evaluateAccess(AccessCb cb,
+                                      AccessPrincipal who,
+                                      AccessPrincipal owner,
+                                      Privilege[] how, CharSequence acl,
+                                      PrivilegeSet filter)
+          throws AccessException {
+    return EvaluatedAccessCache.evaluateAccess(cb, who, owner, how,
+                                               acl, filter);
+  }
+
+  /** convenience method for an acl held as ASCII in a ByteBuffer, for
+   * example a mapped page. The position and limit of the buffer are not used
+   * or changed. The acl is not copied unless we need to evaluate it.
+   *
+   * @param cb       callback
+   * @param who      Acl.Principal defining who is trying to get access
+   * @param owner    owner of object
+   * @param how      Privilege set defining desired access
+   * @param acl      buffer holding the acl for the object
+   * @param offset   of the acl in the buffer
+   * @param length   of the acl
+   * @param filter    if not null specifies maximum access
+   * @return CurrentAccess   access + allowed/disallowed
+   * @throws AccessException on error
+   */
+  public CurrentAccess evaluateAccess(AccessCb cb,
+                                      AccessPrincipal who,
+                                      AccessPrincipal owner,
+                                      Privilege[] how,
+                                      ByteBuffer acl, int offset, int length,
+                                      PrivilegeSet filter)
+          throws AccessException {
+    return EvaluatedAccessCache.evaluateAccess(cb, who, owner, how,
+                                               acl, offset, length, filter);
+  }
+
+  /** convenience method for an entity which stores the id of its acl in an
+   * {@link AclDictionary}. Results are cached against the id.
+   *
+   * @param cb       callback
+   * @param who      Acl.Principal defining who is trying to get access
+   * @param owner    owner of object
+   * @param how      Privilege set defining desired access
+   * @param acls     dictionary holding the acl
+   * @param aclId    id of the acl for the object
+   * @param filter    if not null specifies maximum access
+   * @return CurrentAccess   access + allowed/disallowed
+   * @throws AccessException on error
+   */
+  public CurrentAccess evaluateAccess(AccessCb cb,
+                                      AccessPrincipal who,
+                                      AccessPrincipal owner,
+                                      Privilege[] how,
+                                      AclDictionary acls, int aclId,
+                                      PrivilegeSet filter)
+          throws AccessException {
+    return EvaluatedAccessCache.evaluateAccess(cb, who, owner, how,
+                                               acls, aclId, filter);
+  }
+
+  /** convenience method for a caller who knows the version of the acl, for
+   * example from an acl version column. Results are cached against the
+   * entity id and version and the acl is only decoded on a miss. Every acl
+   * with a given entity id and version must be the same.
+   *
+   * @param cb         callback
+   * @param who        Acl.Principal defining who is trying to get access
+   * @param owner      owner of object
+   * @param how        Privilege set defining desired access
+   * @param entityId   identifies the object - not null
+   * @param aclVersion identifies the acl of the object
+   * @param aclChars   char[] defining current acls for object
+   * @param filter    if not null specifies maximum access
+   * @return CurrentAccess   access + allowed/disallowed
+   * @throws AccessException on error
+   */
+  public CurrentAccess evaluateAccessByVersion(AccessCb cb,
+                                               AccessPrincipal who,
+                                               AccessPrincipal owner,
+                                               Privilege[] how,
+                                               String entityId, long aclVersion,
+                                               char[] aclChars,
+                                               PrivilegeSet filter)
+          throws AccessException {
+    return EvaluatedAccessCache.evaluateAccessByVersion(cb, who, owner, how,
+                                                        entityId, aclVersion,
+                                                        aclChars, filter);
+  }
+
+  /** As above for a version held as a short String, for example an entity
+   * id and acl etag.
+   *
+   * @param cb         callback
+   * @param who        Acl.Principal defining who is trying to get access
+   * @param owner      owner of object
+   * @param how        Privilege set defining desired access
+   * @param aclVersion identifies the acl - if null the acl is used
+   * @param aclChars   char[] defining current acls for object
+   * @param filter    if not null specifies maximum access
+   * @return CurrentAccess   access + allowed/disallowed
+   * @throws AccessException on error
+   */
+  public CurrentAccess evaluateAccessByVersion(AccessCb cb,
+                                               AccessPrincipal who,
+                                               AccessPrincipal owner,
+                                               Privilege[] how,
+                                               String aclVersion, char[] aclChars,
+                                               PrivilegeSet filter)
+          throws AccessException {
+    return EvaluatedAccessCache.evaluateAccessByVersion(cb, who, owner, how,
+                                                        aclVersion, aclChars,
+                                                        filter);
+  }
+
+  /** convenience method for a caller who keeps the fingerprint of the acl
+   * with it, for example from {@link EncodedAcl#getFingerprint()} after
+   * {@link Acl#encode()}. The acl is not hashed and its characters are only
+   * compared to confirm a cached result.
+   *
+   * @param cb       callback
+   * @param who      Acl.Principal defining who is trying to get access
+   * @param owner    owner of object
+   * @param how      Privilege set defining desired access
+   * @param aclChars char[] defining current acls for object
+   * @param aclFingerprint {@link EncodedAcl#fingerprint(char[])} of aclChars
+   * @param filter    if not null specifies maximum access
+   * @return CurrentAccess   access + allowed/disallowed
+   * @throws AccessException on error
+   */
+  public CurrentAccess evaluateAccessByFingerprint(AccessCb cb,
+                                                   AccessPrincipal who,
+                                                   AccessPrincipal owner,
+                                                   Privilege[] how,
+                                                   char[] aclChars,
+                                                   long aclFingerprint,
+                                                   PrivilegeSet filter)
+          throws AccessException {
+    return EvaluatedAccessCache.evaluateAccessByFingerprint(cb, who, owner,
+                                                            how, aclChars,
+                                                            aclFingerprint,
+                                                            filter);
+  }
+
+  /** convenience method for an acl stored as bytes by
+   * {@link BinaryAcl#fromChars(char[])}. The acl may be in binary form or
+   * held as its characters.
+   *
+   * @param cb       callback
+   * @param who      Acl.Principal defining who is trying to get access
+   * @param owner    owner of object
+   * @param how      Privilege set defining desired access
+   * @param acl      byte[] defining current acls for object
+   * @param filter    if not null specifies maximum access
+   * @return CurrentAccess   access + allowed/disallowed
+   * @throws AccessException on error
+   */
+  public CurrentAccess evaluateAccess(AccessCb cb,
+                                      AccessPrincipal who,
+                                      AccessPrincipal owner,
+                                      Privilege[] how, byte[] acl,
+                                      PrivilegeSet filter)
+          throws AccessException {
+    return EvaluatedAccessCache.evaluateAccess(cb, who, owner, how,
+                                               acl, filter);
+  }
+
   /** convenience method
    *
    * @param cb       callback
@@ -355,5 +564,183 @@ public class Access implements Serializable {
                                                new Privilege[]{Privileges.makePriv(priv)},
                                                aclChars, filter);
   }
-}
 
+  /** Evaluate access for one principal to a number of entities, for example
+   * the members of a collection. The desired access, principal and owner are
+   * prepared once for the whole batch.
+   *
+   * @param cb       callback
+   * @param who      Acl.Principal defining who is trying to get access
+   * @param owner    owner of the objects
+   * @param how      Privilege set defining desired access
+   * @param acls     char[] defining current acls for each object
+   * @param filter    if not null specifies maximum access
+   * @return CurrentAccess for each acl in the same order
+   * @throws AccessException on error
+   */
+  public CurrentAccess[] evaluateAccess(AccessCb cb,
+                                        AccessPrincipal who,
+                                        AccessPrincipal owner,
+                                        Privilege[] how,
+                                        List<char[]> acls,
+                                        PrivilegeSet filter)
+          throws AccessException {
+    return EvaluatedAccessCache.evaluateAccess(cb, who, owner, how,
+                                               acls, filter);
+  }
+
+  /** As above but only determine if access is allowed.
+   *
+   * @param cb       callback
+   * @param who      Acl.Principal defining who is trying to get access
+   * @param owner    owner of the objects
+   * @param how      Privilege set defining desired access
+   * @param acls     char[] defining current acls for each object
+   * @param filter    if not null specifies maximum access
+   * @return BitSet with bit i set if access is allowed by acl i
+   * @throws AccessException on error
+   */
+  public BitSet accessAllowed(AccessCb cb,
+                              AccessPrincipal who,
+                              AccessPrincipal owner,
+                              Privilege[] how,
+                              List<char[]> acls,
+                              PrivilegeSet filter)
+          throws AccessException {
+    return allowedBits(EvaluatedAccessCache.evaluateAccess(cb, who, owner,
+                                                           how, acls,
+                                                           filter));
+  }
+
+  /** Evaluate access for a number of principals to one object, for example
+   * the attendees of a scheduling message. The acl is decoded once for the
+   * whole batch.
+   *
+   * @param cb       callback
+   * @param whos     principals trying to get access
+   * @param owner    owner of object
+   * @param how      Privilege set defining desired access
+   * @param aclChars char[] defining current acls for object
+   * @param filter    if not null specifies maximum access
+   * @return CurrentAccess for each principal in iteration order
+   * @throws AccessException on error
+   */
+  public CurrentAccess[] evaluateAccess(AccessCb cb,
+                                        Collection<? extends AccessPrincipal> whos,
+                                        AccessPrincipal owner,
+                                        Privilege[] how,
+                                        char[] aclChars,
+                                        PrivilegeSet filter)
+          throws AccessException {
+    return EvaluatedAccessCache.evaluateAccess(cb, whos, owner, how,
+                                               aclChars, filter);
+  }
+
+  /** As above but only determine if access is allowed.
+   *
+   * @param cb       callback
+   * @param whos     principals trying to get access
+   * @param owner    owner of object
+   * @param how      Privilege set defining desired access
+   * @param aclChars char[] defining current acls for object
+   * @param filter    if not null specifies maximum access
+   * @return BitSet with bit i set if principal i is allowed access
+   * @throws AccessException on error
+   */
+  public BitSet accessAllowed(AccessCb cb,
+                              Collection<? extends AccessPrincipal> whos,
+                              AccessPrincipal owner,
+                              Privilege[] how,
+                              char[] aclChars,
+                              PrivilegeSet filter)
+          throws AccessException {
+    return allowedBits(EvaluatedAccessCache.evaluateAccess(cb, whos, owner,
+                                                           how, aclChars,
+                                                           filter));
+  }
+
+  /** Evaluate access for one principal to a number of objects. If an
+   * executor is supplied large batches are split and evaluated concurrently,
+   * for example on a ForkJoinPool. Results are always in acl order.
+   *
+   * @param cb       callback - must be safe for concurrent use
+   * @param who      Acl.Principal defining who is trying to get access
+   * @param owner    owner of the objects
+   * @param how      Privilege set defining desired access
+   * @param acls     char[] defining current acls for each object
+   * @param filter    if not null specifies maximum access
+   * @param executor null to evaluate on the calling thread
+   * @return CurrentAccess for each acl in the same order
+   * @throws AccessException on error
+   */
+  public CurrentAccess[] evaluateAccess(AccessCb cb,
+                                        AccessPrincipal who,
+                                        AccessPrincipal owner,
+                                        Privilege[] how,
+                                        List<char[]> acls,
+                                        PrivilegeSet filter,
+                                        Executor executor)
+          throws AccessException {
+    return EvaluatedAccessCache.evaluateAccess(cb, who, owner, how,
+                                               acls, filter, executor);
+  }
+
+  /** Evaluate access for a number of principals to one object. If an
+   * executor is supplied large batches are split and evaluated concurrently.
+   * Results are always in principal iteration order.
+   *
+   * @param cb       callback - must be safe for concurrent use
+   * @param whos     principals trying to get access
+   * @param owner    owner of object
+   * @param how      Privilege set defining desired access
+   * @param aclChars char[] defining current acls for object
+   * @param filter    if not null specifies maximum access
+   * @param executor null to evaluate on the calling thread
+   * @return CurrentAccess for each principal in iteration order
+   * @throws AccessException on error
+   */
+  public CurrentAccess[] evaluateAccess(AccessCb cb,
+                                        Collection<? extends AccessPrincipal> whos,
+                                        AccessPrincipal owner,
+                                        Privilege[] how,
+                                        char[] aclChars,
+                                        PrivilegeSet filter,
+                                        Executor executor)
+          throws AccessException {
+    return EvaluatedAccessCache.evaluateAccess(cb, whos, owner, how,
+                                               aclChars, filter, executor);
+  }
+
+  /** Evaluate access without blocking on the callback. If the result is
+   * already cached the returned future is complete.
+   *
+   * @param cb       asynchronous callback
+   * @param who      Acl.Principal defining who is trying to get access
+   * @param owner    owner of object
+   * @param how      Privilege set defining desired access
+   * @param aclChars char[] defining current acls for object
+   * @param filter    if not null specifies maximum access
+   * @return future CurrentAccess   access + allowed/disallowed
+   */
+  public CompletableFuture<CurrentAccess> evaluateAccessAsync(AsyncAccessCb cb,
+                                                              AccessPrincipal who,
+                                                              AccessPrincipal owner,
+                                                              Privilege[] how,
+                                                              char[] aclChars,
+                                                              PrivilegeSet filter) {
+    return EvaluatedAccessCache.evaluateAccessAsync(cb, who, owner, how,
+                                                    aclChars, filter);
+  }
+
+  private static BitSet allowedBits(final CurrentAccess[] cas) {
+    final BitSet res = new BitSet(cas.length);
+
+    for (int i = 0; i < cas.length; i++) {
+      if (cas[i].getAccessAllowed()) {
+        res.set(i);
+      }
+    }
+
+    return res;
+  }
+}
@@ -0,0 +1,225 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access;
+
+import org.bedework.access.Access.AccessCb;
+
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/** A Spliterator which yields only those entities of an underlying source
+ * to which a principal has the desired access. Typical use is
+ *
+ * <pre>
+ *   Stream&lt;Entity&gt; readable =
+ *       AccessFilter.filter(entities.stream(), cb, who,
+ *                           Access.privSetRead, null,
+ *                           Entity::getOwner, Entity::getAclChars);
+ * </pre>
+ *
+ * <p>Entities are pulled from the source and evaluated one at a time, as
+ * they are asked for, so that asking for the first few accessible entities
+ * does not evaluate the whole source. Nothing is held back so splitting is
+ * always delegated to the source and parallel streams are evaluated in
+ * parallel.
+ *
+ * <p>An AccessException during evaluation is rethrown wrapped in a
+ * RuntimeException as the stream methods cannot throw checked exceptions.
+ *
+ * @param <T> type of entity
+ *
+ *  @author Mike Douglass   douglm - bedework.org
+ */
+public class AccessFilter<T> implements Spliterator<T> {
+  private final Spliterator<T> source;
+
+  private final AccessCb cb;
+
+  private final AccessPrincipal who;
+
+  private final String accessorHref;
+
+  private final long required;
+
+  private final PrivilegeSet filter;
+
+  private final Function<? super T, ? extends AccessPrincipal> ownerOf;
+
+  private final Function<? super T, char[]> aclOf;
+
+  /* Set by tryAdvance for the entity it pulled if it is accessible */
+  private boolean accessible;
+
+  /**
+   * @param source    entities to filter
+   * @param cb        callback - must be safe for concurrent use if the
+   *                  spliterator is split
+   * @param who       principal trying to get access
+   * @param how       desired access
+   * @param filter    if not null specifies maximum access
+   * @param ownerOf   returns the owner of an entity
+   * @param aclOf     returns the encoded acl of an entity
+   */
+  public AccessFilter(final Spliterator<T> source,
+                      final AccessCb cb,
+                      final AccessPrincipal who,
+                      final Privilege[] how,
+                      final PrivilegeSet filter,
+                      final Function<? super T, ? extends AccessPrincipal> ownerOf,
+                      final Function<? super T, char[]> aclOf) {
+    this(source, cb, who, who.getPrincipalRef(),
+         Privilege.indexMask(how), filter, ownerOf, aclOf);
+  }
+
+  private AccessFilter(final Spliterator<T> source,
+                       final AccessCb cb,
+                       final AccessPrincipal who,
+                       final String accessorHref,
+                       final long required,
+                       final PrivilegeSet filter,
+                       final Function<? super T, ? extends AccessPrincipal> ownerOf,
+                       final Function<? super T, char[]> aclOf) {
+    this.source = source;
+    this.cb = cb;
+    this.who = who;
+    this.accessorHref = accessorHref;
+    this.required = required;
+    this.filter = filter;
+    this.ownerOf = ownerOf;
+    this.aclOf = aclOf;
+  }
+
+  /** Filter a stream. The result is parallel if the source is.
+   *
+   * @param source    entities to filter
+   * @param cb        callback
+   * @param who       principal trying to get access
+   * @param how       desired access
+   * @param filter    if not null specifies maximum access
+   * @param ownerOf   returns the owner of an entity
+   * @param aclOf     returns the encoded acl of an entity
+   * @param <T> type of entity
+   * @return stream of accessible entities in source order
+   */
+  public static <T> Stream<T> filter(final Stream<T> source,
+                                     final AccessCb cb,
+                                     final AccessPrincipal who,
+                                     final Privilege[] how,
+                                     final PrivilegeSet filter,
+                                     final Function<? super T, ? extends AccessPrincipal> ownerOf,
+                                     final Function<? super T, char[]> aclOf) {
+    return StreamSupport.stream(new AccessFilter<>(source.spliterator(),
+                                                   cb, who, how, filter,
+                                                   ownerOf, aclOf),
+                                source.isParallel())
+                        .onClose(source::close);
+  }
+
+  /** Filter an iterator.
+   *
+   * @param source    entities to filter
+   * @param cb        callback
+   * @param who       principal trying to get access
+   * @param how       desired access
+   * @param filter    if not null specifies maximum access
+   * @param ownerOf   returns the owner of an entity
+   * @param aclOf     returns the encoded acl of an entity
+   * @param <T> type of entity
+   * @return iterator over accessible entities in source order
+   */
+  public static <T> Iterator<T> filter(final Iterator<T> source,
+                                       final AccessCb cb,
+                                       final AccessPrincipal who,
+                                       final Privilege[] how,
+                                       final PrivilegeSet filter,
+                                       final Function<? super T, ? extends AccessPrincipal> ownerOf,
+                                       final Function<? super T, char[]> aclOf) {
+    return Spliterators.iterator(
+            new AccessFilter<>(Spliterators.spliteratorUnknownSize(source,
+                                                                   ORDERED),
+                               cb, who, how, filter, ownerOf, aclOf));
+  }
+
+  @Override
+  public boolean tryAdvance(final Consumer<? super T> action) {
+    accessible = false;
+
+    while (source.tryAdvance(ent -> {
+      if (allowed(ent)) {
+        accessible = true;
+        action.accept(ent);
+      }
+    })) {
+      if (accessible) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  @Override
+  public void forEachRemaining(final Consumer<? super T> action) {
+    source.forEachRemaining(ent -> {
+      if (allowed(ent)) {
+        action.accept(ent);
+      }
+    });
+  }
+
+  @Override
+  public Spliterator<T> trySplit() {
+    final Spliterator<T> split = source.trySplit();
+
+    if (split == null) {
+      return null;
+    }
+
+    return new AccessFilter<>(split, cb, who, accessorHref, required,
+                              filter, ownerOf, aclOf);
+  }
+
+  @Override
+  public long estimateSize() {
+    return source.estimateSize();
+  }
+
+  @Override
+  public int characteristics() {
+    /* We drop entities so we can say nothing about the size */
+    return source.characteristics() &
+            (ORDERED | DISTINCT | NONNULL | IMMUTABLE | CONCURRENT);
+  }
+
+  private boolean allowed(final T ent) {
+    try {
+      return EvaluatedAccessCache.evaluateAccess(cb, who, accessorHref,
+                                                 ownerOf.apply(ent), required,
+                                                 aclOf.apply(ent), filter)
+                                 .getAccessAllowed();
+    } catch (final AccessException ae) {
+      throw new RuntimeException(ae);
+    }
+  }
+}
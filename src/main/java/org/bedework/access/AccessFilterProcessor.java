@@ -0,0 +1,474 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access;
+
+import org.bedework.access.Access.AccessCb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/** A Flow.Processor which passes on only those items to which a principal
+ * has the desired access.
+ *
+ * <p>Items are requested from upstream a batch at a time. When a batch has
+ * arrived, or upstream completes, the batch is evaluated on the executor
+ * and the accessible items are published in order. The next batch is only
+ * requested once the previous one has been published, so a slow subscriber
+ * slows the upstream.
+ *
+ * <p>Publishing never blocks an executor thread. When a subscriber's buffer
+ * is full publishing stops and carries on, again on the executor, once a
+ * subscriber has taken an item. A blocked thread could otherwise be the one
+ * the subscriber needs to drain its buffer.
+ *
+ * <p>Items with the same owner are evaluated together with
+ * {@link EvaluatedAccessCache#evaluateAccess(Access.AccessCb, AccessPrincipal,
+ * AccessPrincipal, Privilege[], List, PrivilegeSet)}, so sources which group
+ * entities by owner gain most. If an asynchronous callback is supplied the
+ * items of a batch are evaluated with {@link Access#evaluateAccessAsync} so
+ * that cache misses do not hold an executor thread while principals are
+ * resolved.
+ *
+ * <p>Because a batch is only evaluated once it is full, sources which produce
+ * items slowly should use a small batch size. Items with no owner are not
+ * passed on.
+ *
+ * <p>Items are published through a SubmissionPublisher held by the
+ * processor so the only way in is from upstream.
+ *
+ * @param <T> type of item
+ *
+ *  @author Mike Douglass   douglm - bedework.org
+ */
+public class AccessFilterProcessor<T> implements Flow.Processor<T, T> {
+  private final SubmissionPublisher<T> publisher;
+
+  private final AccessCb cb;
+
+  private final Access.AsyncAccessCb asyncCb;
+
+  private final AccessPrincipal who;
+
+  private final Privilege[] how;
+
+  private final PrivilegeSet filter;
+
+  private final Function<? super T, ? extends AccessPrincipal> ownerOf;
+
+  private final Function<? super T, char[]> aclOf;
+
+  private final Executor executor;
+
+  private final int batchSize;
+
+  private Flow.Subscription subscription;
+
+  /* Only touched by the upstream signalling thread */
+  private List<T> batch;
+
+  /* Completes when the last batch handed to the executor is published */
+  private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+
+  /* Set while a delivery waits for a subscriber to take an item */
+  private final AtomicReference<Delivery> stalled = new AtomicReference<>();
+
+  /**
+   * @param cb        callback - must be safe for use on the executor
+   * @param who       principal trying to get access
+   * @param how       desired access
+   * @param filter    if not null specifies maximum access
+   * @param ownerOf   returns the owner of an item
+   * @param aclOf     returns the encoded acl of an item
+   * @param executor  evaluates batches and delivers to subscribers
+   * @param batchSize number of items requested from upstream at a time
+   */
+  public AccessFilterProcessor(final AccessCb cb,
+                               final AccessPrincipal who,
+                               final Privilege[] how,
+                               final PrivilegeSet filter,
+                               final Function<? super T, ? extends AccessPrincipal> ownerOf,
+                               final Function<? super T, char[]> aclOf,
+                               final Executor executor,
+                               final int batchSize) {
+    this(cb, null, who, how, filter, ownerOf, aclOf, executor, batchSize);
+  }
+
+  /**
+   * @param asyncCb   asynchronous callback
+   * @param who       principal trying to get access
+   * @param how       desired access
+   * @param filter    if not null specifies maximum access
+   * @param ownerOf   returns the owner of an item
+   * @param aclOf     returns the encoded acl of an item
+   * @param executor  evaluates batches and delivers to subscribers
+   * @param batchSize number of items requested from upstream at a time
+   */
+  public AccessFilterProcessor(final Access.AsyncAccessCb asyncCb,
+                               final AccessPrincipal who,
+                               final Privilege[] how,
+                               final PrivilegeSet filter,
+                               final Function<? super T, ? extends AccessPrincipal> ownerOf,
+                               final Function<? super T, char[]> aclOf,
+                               final Executor executor,
+                               final int batchSize) {
+    this(null, asyncCb, who, how, filter, ownerOf, aclOf, executor,
+         batchSize);
+  }
+
+  private AccessFilterProcessor(final AccessCb cb,
+                                final Access.AsyncAccessCb asyncCb,
+                                final AccessPrincipal who,
+                                final Privilege[] how,
+                                final PrivilegeSet filter,
+                                final Function<? super T, ? extends AccessPrincipal> ownerOf,
+                                final Function<? super T, char[]> aclOf,
+                                final Executor executor,
+                                final int batchSize) {
+    if (batchSize <= 0) {
+      throw new IllegalArgumentException("batchSize must be positive");
+    }
+
+    publisher = new SubmissionPublisher<>(executor,
+                                          Flow.defaultBufferSize());
+
+    this.cb = cb;
+    this.asyncCb = asyncCb;
+    this.who = who;
+    this.how = how;
+    this.filter = filter;
+    this.ownerOf = ownerOf;
+    this.aclOf = aclOf;
+    this.executor = executor;
+    this.batchSize = batchSize;
+    batch = new ArrayList<>(batchSize);
+  }
+
+  /* Subscribers are wrapped so we hear when they take an item */
+
+  @Override
+  public void subscribe(final Flow.Subscriber<? super T> subscriber) {
+    if (subscriber == null) {
+      throw new NullPointerException();
+    }
+
+    publisher.subscribe(new ResumingSubscriber<T>(subscriber,
+                                                  this::resume));
+  }
+
+  @Override
+  public void onSubscribe(final Flow.Subscription subscription) {
+    if (this.subscription != null) {
+      subscription.cancel();
+      return;
+    }
+
+    this.subscription = subscription;
+    subscription.request(batchSize);
+  }
+
+  @Override
+  public void onNext(final T item) {
+    batch.add(item);
+
+    if (batch.size() < batchSize) {
+      return;
+    }
+
+    final List<T> full = batch;
+    batch = new ArrayList<>(batchSize);
+
+    chain(full, () -> subscription.request(batchSize));
+  }
+
+  @Override
+  public void onError(final Throwable t) {
+    batch = null;
+    tail.whenComplete((v, ignored) -> publisher.closeExceptionally(t));
+  }
+
+  @Override
+  public void onComplete() {
+    final List<T> last = batch;
+    batch = null;
+
+    chain(last, publisher::close);
+  }
+
+  /* Evaluate and publish the items after the previous batch, then run
+   * andThen.
+   */
+  private void chain(final List<T> items,
+                     final Runnable andThen) {
+    if (asyncCb == null) {
+      tail = tail.thenApplyAsync(v -> evaluate(items), executor)
+                 .thenCompose(this::deliver);
+    } else {
+      /* Deliver on the executor - not on a thread resolving principals */
+      tail = tail.thenComposeAsync(v -> evaluateAsync(items), executor)
+                 .thenComposeAsync(this::deliver, executor);
+    }
+
+    tail = tail.thenRun(andThen);
+
+    tail.exceptionally(t -> {
+      subscription.cancel();
+      if ((t instanceof CompletionException) && (t.getCause() != null)) {
+        publisher.closeExceptionally(t.getCause());
+      } else {
+        publisher.closeExceptionally(t);
+      }
+      return null;
+    });
+  }
+
+  /* Returns the accessible items. Each run of items with the same owner is
+   * evaluated as one batch. Items with no owner are skipped.
+   */
+  private List<T> evaluate(final List<T> items) {
+    final List<T> accessible = new ArrayList<>(items.size());
+    final List<char[]> acls = new ArrayList<>();
+    /* The index in items of each acl */
+    final List<Integer> indexes = new ArrayList<>();
+    AccessPrincipal owner = null;
+
+    try {
+      for (int i = 0; i <= items.size(); i++) {
+        final AccessPrincipal itemOwner;
+
+        if (i < items.size()) {
+          itemOwner = ownerOf.apply(items.get(i));
+        } else {
+          itemOwner = null;
+        }
+
+        if ((owner != null) &&
+                ((itemOwner == null) ||
+                         !owner.getPrincipalRef()
+                               .equals(itemOwner.getPrincipalRef()))) {
+          final CurrentAccess[] cas =
+                  EvaluatedAccessCache.evaluateAccess(cb, who, owner, how,
+                                                      acls, filter);
+
+          for (int j = 0; j < cas.length; j++) {
+            if (cas[j].getAccessAllowed()) {
+              accessible.add(items.get(indexes.get(j)));
+            }
+          }
+
+          acls.clear();
+          indexes.clear();
+          owner = null;
+        }
+
+        if (itemOwner != null) {
+          owner = itemOwner;
+          acls.add(aclOf.apply(items.get(i)));
+          indexes.add(i);
+        }
+      }
+    } catch (final AccessException ae) {
+      throw new CompletionException(ae);
+    }
+
+    return accessible;
+  }
+
+  private CompletableFuture<List<T>> evaluateAsync(final List<T> items) {
+    final List<CompletableFuture<CurrentAccess>> cas =
+            new ArrayList<>(items.size());
+    /* The items with an owner - the index in cas of each */
+    final List<T> owned = new ArrayList<>(items.size());
+
+    for (final T item: items) {
+      final AccessPrincipal owner = ownerOf.apply(item);
+
+      if (owner == null) {
+        continue;
+      }
+
+      owned.add(item);
+      cas.add(EvaluatedAccessCache.evaluateAccessAsync(asyncCb, who,
+                                                       owner,
+                                                       how,
+                                                       aclOf.apply(item),
+                                                       filter));
+    }
+
+    return CompletableFuture.allOf(cas.toArray(new CompletableFuture<?>[0]))
+                            .thenApply(v -> {
+      final List<T> accessible = new ArrayList<>(owned.size());
+
+      for (int i = 0; i < owned.size(); i++) {
+        if (cas.get(i).join().getAccessAllowed()) {
+          accessible.add(owned.get(i));
+        }
+      }
+
+      return accessible;
+    });
+  }
+
+  /* Completes once all the items have been submitted */
+  private CompletableFuture<Void> deliver(final List<T> items) {
+    final Delivery d = new Delivery(items);
+
+    d.run();
+
+    return d.done;
+  }
+
+  /* Run again on the executor if a delivery is waiting */
+  private void resume() {
+    if (stalled.get() == null) {
+      return;
+    }
+
+    final Delivery d = stalled.getAndSet(null);
+
+    if (d != null) {
+      executor.execute(d);
+    }
+  }
+
+  /* True if a submit could block waiting for some subscriber */
+  private boolean full() {
+    return publisher.estimateMaximumLag() >=
+            publisher.getMaxBufferCapacity();
+  }
+
+  /* Submits items only while every subscriber has room so submit never
+   * blocks. Otherwise it parks itself in stalled until a subscriber takes
+   * an item, goes away or finishes.
+   */
+  private final class Delivery implements Runnable {
+    private final List<T> items;
+
+    private int pos;
+
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+    Delivery(final List<T> items) {
+      this.items = items;
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (pos < items.size()) {
+          if (full()) {
+            stalled.set(this);
+
+            /* The subscribers may have caught up before we were set */
+            if (full() || !stalled.compareAndSet(this, null)) {
+              return;
+            }
+
+            continue;
+          }
+
+          publisher.submit(items.get(pos));
+          pos++;
+        }
+
+        done.complete(null);
+      } catch (final Throwable t) {
+        done.completeExceptionally(t);
+      }
+    }
+  }
+
+  private static final class ResumingSubscriber<T>
+          implements Flow.Subscriber<T> {
+    final Flow.Subscriber<? super T> subscriber;
+
+    private final Runnable resume;
+
+    ResumingSubscriber(final Flow.Subscriber<? super T> subscriber,
+                       final Runnable resume) {
+      this.subscriber = subscriber;
+      this.resume = resume;
+    }
+
+    @Override
+    public void onSubscribe(final Flow.Subscription subscription) {
+      subscriber.onSubscribe(new Flow.Subscription() {
+        @Override
+        public void request(final long n) {
+          subscription.request(n);
+        }
+
+        @Override
+        public void cancel() {
+          subscription.cancel();
+          resume.run();
+        }
+      });
+    }
+
+    @Override
+    public void onNext(final T item) {
+      try {
+        subscriber.onNext(item);
+      } finally {
+        resume.run();
+      }
+    }
+
+    @Override
+    public void onError(final Throwable t) {
+      try {
+        subscriber.onError(t);
+      } finally {
+        resume.run();
+      }
+    }
+
+    @Override
+    public void onComplete() {
+      try {
+        subscriber.onComplete();
+      } finally {
+        resume.run();
+      }
+    }
+
+    /* SubmissionPublisher refuses a subscriber equal to one it has */
+
+    @Override
+    public int hashCode() {
+      return subscriber.hashCode();
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (!(o instanceof ResumingSubscriber)) {
+        return false;
+      }
+
+      return subscriber.equals(((ResumingSubscriber<?>)o).subscriber);
+    }
+  }
+}
@@ -23,8 +23,8 @@ import org.bedework.util.caching.ObjectPool;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /** Immutable object to represent an ace for a calendar entity or service.
  *
@@ -56,7 +56,11 @@ public final class Ace implements PrivilegeDefs, WhoDefs, Comparable<Ace> {
 
   private static ObjectPool<String> inheritedFroms = new ObjectPool<String>();
 
-  private static Map<String, Ace> aceCache = new HashMap<String, Ace>();
+  private static Map<AceKey, Ace> aceCache = new ConcurrentHashMap<>();
+
+  /* Encoded inherited flag, path and terminator indexed by path */
+  private static Map<String, String> inheritedSuffixes =
+          new ConcurrentHashMap<>();
 
   private static Access.AccessStatsEntry aceCacheSize =
     new Access.AccessStatsEntry("ACE cache size");
@@ -79,10 +83,9 @@ public final class Ace implements PrivilegeDefs, WhoDefs, Comparable<Ace> {
                             final String inheritedFrom) throws AccessException {
     Ace ace = new Ace(who, privs, inheritedFrom);
 
-    Ace cace = aceCache.get(ace.encoding);
+    Ace cace = aceCache.putIfAbsent(new AceKey(ace.encoding), ace);
 
     if (cace == null) {
-      aceCache.put(ace.encoding, ace);
       aceCacheSize.count = aceCache.size();
       cace = ace;
     }
@@ -234,29 +237,20 @@ public final class Ace implements PrivilegeDefs, WhoDefs, Comparable<Ace> {
       }
     }
 
-    String enc;
+    /* Probe the cache with the ace in place. If it inherits from path
+     * the cached encoding has the path in place of the terminator.
+     */
+    AceKey probe;
 
     if (hasInherited || (path == null)) {
-      enc = acl.getString(pos);
+      probe = new AceKey(acl, pos, acl.getPos(), null);
     } else {
-      acl.back(); // Don't catch the terminating space
-
-      StringBuilder sb = new StringBuilder(acl.getString(pos));
-
-      acl.getChar();  // discard terminator
-
-      sb.append(PrivilegeDefs.inheritedFlag);
-      sb.append(EncodedAcl.encodedString(path));
-      sb.append(' ');
-
-      enc = sb.toString();
+      probe = new AceKey(acl, pos, acl.getPos() - 1,
+                         inheritedSuffixes.computeIfAbsent(path,
+                                                           Ace::inheritedSuffix));
     }
 
-    //if (debug) {
-    //  debugMsg("decode: string is :'" + enc + "'");
-    //}
-
-    Ace ace = aceCache.get(enc);
+    Ace ace = aceCache.get(probe);
 
     if (ace != null) {
       aceCacheHits.count++;
@@ -296,6 +290,122 @@ public final class Ace implements PrivilegeDefs, WhoDefs, Comparable<Ace> {
     return ace;
   }
 
+  private static String inheritedSuffix(final String path) {
+    StringBuilder sb = new StringBuilder();
+
+    sb.append(PrivilegeDefs.inheritedFlag);
+    sb.append(EncodedAcl.encodedString(path));
+    sb.append(' ');
+
+    return sb.toString();
+  }
+
+  /* Key for the ace cache - the characters of an encoded ace. Stored keys
+   * hold the encoding of the ace. A probe refers to the characters in
+   * place in the acl being decoded, optionally followed by a suffix, so a
+   * cache hit builds no strings. The hash is that of the equivalent String.
+   */
+  private static final class AceKey {
+    private final String encoding;
+    private final EncodedAcl acl;
+    private final int start;
+    private final int end;
+    private final String suffix;
+    private final int hash;
+
+    AceKey(final String encoding) {
+      this.encoding = encoding;
+      acl = null;
+      start = 0;
+      end = encoding.length();
+      suffix = null;
+      hash = encoding.hashCode();
+    }
+
+    AceKey(final EncodedAcl acl,
+           final int start,
+           final int end,
+           final String suffix) {
+      encoding = null;
+      this.acl = acl;
+      this.start = start;
+      this.end = end;
+      this.suffix = suffix;
+
+      int h = 0;
+
+      for (int i = start; i < end; i++) {
+        h = 31 * h + acl.charAt(i);
+      }
+
+      if (suffix != null) {
+        for (int i = 0; i < suffix.length(); i++) {
+          h = 31 * h + suffix.charAt(i);
+        }
+      }
+
+      hash = h;
+    }
+
+    private int length() {
+      if (suffix == null) {
+        return end - start;
+      }
+
+      return end - start + suffix.length();
+    }
+
+    private char charAt(final int index) {
+      if (encoding != null) {
+        return encoding.charAt(index);
+      }
+
+      final int i = start + index;
+
+      if (i < end) {
+        return acl.charAt(i);
+      }
+
+      return suffix.charAt(i - end);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) {
+        return true;
+      }
+
+      if (!(o instanceof AceKey)) {
+        return false;
+      }
+
+      final AceKey that = (AceKey)o;
+
+      if ((hash != that.hash) || (length() != that.length())) {
+        return false;
+      }
+
+      if ((encoding != null) && (that.encoding != null)) {
+        return encoding.equals(that.encoding);
+      }
+
+      final int len = length();
+
+      for (int i = 0; i < len; i++) {
+        if (charAt(i) != that.charAt(i)) {
+          return false;
+        }
+      }
+
+      return true;
+    }
+  }
+
   /* ====================================================================
    *                 Encoding methods
    * ==================================================================== */
@@ -20,7 +20,15 @@ package org.bedework.access;
 
 import org.bedework.util.caching.ObjectPool;
 
+import java.util.Objects;
+
 /** describe who we are giving access to. This object once created is immutable.
+ *
+ * <p>The href produced by the AccessCb for the who value is remembered so
+ * that matching is usually a string comparison. The value is tied to the
+ * callback which produced it so callers should reuse a callback object, or
+ * give equal callbacks an equals method. If the principal roots change
+ * call {@link #flushHrefs()} to discard the remembered values.
  *
  * @author douglm - bedework.org
  */
@@ -37,6 +45,37 @@ public final class AceWho implements WhoDefs, Comparable<AceWho> {
 
   private static boolean poolAceWhos = true;
 
+  /* Who type indexed by encoding char - -1 for not a who type */
+  private static final int[] whoTypes = new int[128];
+
+  static {
+    java.util.Arrays.fill(whoTypes, -1);
+
+    for (int whoType = whoTypeFlags.length - 1; whoType >= 0; whoType--) {
+      whoTypes[whoTypeFlags[whoType]] = whoType;
+    }
+  }
+
+  /* Bumped to invalidate every resolved href */
+  private static volatile int hrefGeneration;
+
+  private static final class ResolvedHref {
+    final Access.AccessCb cb;
+    final int generation;
+    final String href;
+
+    ResolvedHref(final Access.AccessCb cb,
+                 final int generation,
+                 final String href) {
+      this.cb = cb;
+      this.generation = generation;
+      this.href = href;
+    }
+  }
+
+  /* The last href we got from a callback. */
+  private transient volatile ResolvedHref resolved;
+
   /** Represents all */
   public static final AceWho all = getAceWho(null, whoTypeAll, false);
 
@@ -107,6 +146,65 @@ public final class AceWho implements WhoDefs, Comparable<AceWho> {
     return whoType;
   }
 
+  /** Discard all the hrefs remembered from calls to the callback. Call this
+   * when the principal roots change. Evaluated access depends on the hrefs
+   * so the {@link EvaluatedAccessCache} is cleared as well.
+   */
+  public static void flushHrefs() {
+    synchronized (AceWho.class) {
+      hrefGeneration++;
+    }
+
+    EvaluatedAccessCache.clear();
+  }
+
+  static int getHrefGeneration() {
+    return hrefGeneration;
+  }
+
+  /** Get the href for the who value. The result of the callback is
+   * remembered until {@link #flushHrefs()} is called or we are called with a
+   * different callback.
+   *
+   * @param cb callback
+   * @return href or null for no who value
+   * @throws AccessException on error
+   */
+  public String getHref(final Access.AccessCb cb) throws AccessException {
+    if (who == null) {
+      return null;
+    }
+
+    final int generation = hrefGeneration;
+    final ResolvedHref r = resolved;
+
+    if ((r != null) && (r.generation == generation) &&
+            Objects.equals(r.cb, cb)) {
+      return r.href;
+    }
+
+    final String href = cb.makeHref(who, whoType);
+
+    resolved = new ResolvedHref(cb, generation, href);
+
+    return href;
+  }
+
+  /**
+   * @param cb callback
+   * @return true if getHref would not need to call the callback
+   */
+  boolean hasHref(final Access.AccessCb cb) {
+    if (who == null) {
+      return true;
+    }
+
+    final ResolvedHref r = resolved;
+
+    return (r != null) && (r.generation == hrefGeneration) &&
+            Objects.equals(r.cb, cb);
+  }
+
   /**
    * @param cb
    * @param pref  full principal name
@@ -122,7 +220,7 @@ public final class AceWho implements WhoDefs, Comparable<AceWho> {
       return getNotWho();
     }
 
-    boolean match = pref.equals(cb.makeHref(getWho(), whoType));
+    boolean match = pref.equals(getHref(cb));
     if (getNotWho()) {
       match = !match;
     }
@@ -181,21 +279,27 @@ public final class AceWho implements WhoDefs, Comparable<AceWho> {
       throw AccessException.badACE("who/notWho flag");
     }
 
-    c = acl.getChar();
-
-    getWhoType:{
-      for (whoType = 0; whoType < whoTypeFlags.length; whoType++) {
-        if (c == whoTypeFlags[whoType]) {
-          break getWhoType;
-        }
-      }
+    whoType = whoTypeOf(acl.getChar());
 
+    if (whoType < 0) {
       throw AccessException.badACE("who type");
     }
 
     return getAceWho(acl.getString(), whoType, notWho);
   }
 
+  /**
+   * @param c encoding character
+   * @return who type flagged by c or -1
+   */
+  static int whoTypeOf(final char c) {
+    if (c >= whoTypes.length) {
+      return -1;
+    }
+
+    return whoTypes[c];
+  }
+
   /** Provide a string representation for user display - this should probably
    * use a localized resource and be part of a display level. It also requires
    * the Privilege objects
@@ -51,6 +51,9 @@ import java.util.TreeMap;
 public class Acl extends EncodedAcl implements PrivilegeDefs {
   private TreeMap<AceWho, Ace> aces;
 
+  /* Built on first use */
+  private transient volatile AclPlan plan;
+
   static ObjectPool<PrivilegeSet> privSets = new ObjectPool<PrivilegeSet>();
 
   static boolean usePool = false;
@@ -80,6 +83,7 @@ public class Acl extends EncodedAcl implements PrivilegeDefs {
     stats.add(evaluations);
     stats.addAll(Ace.getStatistics());
     stats.addAll(EvaluatedAccessCache.getStatistics());
+    stats.addAll(DecodedAclCache.getStatistics());
 
     return stats;
   }
@@ -100,6 +104,7 @@ public class Acl extends EncodedAcl implements PrivilegeDefs {
 
     newCa.acl = ca.acl;
     newCa.aclChars = ca.aclChars;
+    newCa.aclBytes = ca.aclBytes;
     newCa.privileges = ca.privileges;
 
     return newCa;
@@ -118,6 +123,22 @@ public class Acl extends EncodedAcl implements PrivilegeDefs {
     return Collections.unmodifiableCollection(aces.values());
   }
 
+  /** Return the evaluation plan for this acl, building it if necessary.
+   *
+   * @return AclPlan
+   * @throws AccessException on error
+   */
+  AclPlan getPlan() throws AccessException {
+    AclPlan p = plan;
+
+    if (p == null) {
+      p = new AclPlan(this);
+      plan = p;
+    }
+
+    return p;
+  }
+
   /** Remove access for a given 'who' entry
    *
    * @param who
@@ -167,7 +188,7 @@ public class Acl extends EncodedAcl implements PrivilegeDefs {
    * @throws AccessException
    */
   public static Acl decode(final String val) throws AccessException {
-    return decode(val.toCharArray());
+    return decode((CharSequence)val);
   }
 
   /** Given an encoded acl convert to an ordered sequence of fully expanded
@@ -182,6 +203,21 @@ public class Acl extends EncodedAcl implements PrivilegeDefs {
   }
 
 
+  /** Given an encoded acl held in a String, CharBuffer or other
+   * CharSequence convert to an ordered sequence of fully expanded ace
+   * objects. The characters are not copied.
+   *
+   * @param val CharSequence val to decode
+   * @return decoded Acl
+   * @throws AccessException
+   */
+  public static Acl decode(final CharSequence val) throws AccessException {
+    EncodedAcl eacl = new EncodedAcl();
+    eacl.setEncoded(val);
+
+    return decode(eacl, null);
+  }
+
   /** Given an encoded acl convert to an ordered sequence of fully expanded
    * ace objects.
    *
@@ -194,6 +230,11 @@ public class Acl extends EncodedAcl implements PrivilegeDefs {
     EncodedAcl eacl = new EncodedAcl();
     eacl.setEncoded(val);
 
+    return decode(eacl, path);
+  }
+
+  private static Acl decode(final EncodedAcl eacl,
+                            final String path) throws AccessException {
     Collection<Ace> aces = new ArrayList<Ace>();
 
     while (eacl.hasMore()) {
@@ -296,25 +337,14 @@ public class Acl extends EncodedAcl implements PrivilegeDefs {
    * ==================================================================== */
 
   /** Encode this object after manipulation or creation. Inherited entries
-   * will be skipped.
+   * will be skipped. The fingerprint of the result is then available from
+   * {@link #getFingerprint()} for storing with it.
    *
    * @return char[] encoded value
    * @throws AccessException
    */
   public char[] encode() throws AccessException {
-    startEncoding();
-
-    if (aces == null) {
-      return null;
-    }
-
-    for (Ace ace: aces.values()) {
-      if (ace.getInheritedFrom() == null) {
-        ace.encode(this);
-      }
-    }
-
-    return getEncoding();
+    return encode(false);
   }
 
   /** Encode this object after manipulation or creation. Inherited entries
@@ -339,17 +369,32 @@ public class Acl extends EncodedAcl implements PrivilegeDefs {
    * @throws AccessException
    */
   public char[] encodeAll() throws AccessException {
-    startEncoding();
+    return encode(true);
+  }
 
+  /* Decoded acls are shared between threads so we build the encoding in an
+   * object of our own rather than in this one.
+   */
+  private char[] encode(final boolean inherited) throws AccessException {
     if (aces == null) {
+      resetFingerprint();
       return null;
     }
 
+    final EncodedAcl eacl = new EncodedAcl();
+    eacl.startEncoding();
+
     for (Ace ace: aces.values()) {
-      ace.encode(this);
+      if (inherited || (ace.getInheritedFrom() == null)) {
+        ace.encode(eacl);
+      }
     }
 
-    return getEncoding();
+    final char[] encoding = eacl.getEncoding();
+
+    setFingerprint(eacl.getFingerprint());
+
+    return encoding;
   }
 
   /* ====================================================================
@@ -379,16 +424,14 @@ public class Acl extends EncodedAcl implements PrivilegeDefs {
     return sb.toString();
   }
 
+  /* The acl may be shared so we leave the cursor alone */
   @Override
   public String toString() {
     final ToString ts = new ToString(this);
 
     if (!empty()) {
-      rewind();
       ts.append("encoded", Arrays.asList(getEncoded()));
 
-      rewind();
-
       try {
         if (aces == null) {
           decode(getEncoded());
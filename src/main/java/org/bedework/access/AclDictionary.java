@@ -0,0 +1,206 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access;
+
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Interns encoded acls as small integer ids. There are usually far fewer
+ * distinct acls than entities so entities can store the id instead of the
+ * acl, and evaluation with
+ * {@link Access#evaluateAccess(Access.AccessCb, AccessPrincipal, AccessPrincipal, Privilege[], AclDictionary, int, PrivilegeSet)}
+ * caches the result against the id.
+ *
+ * <p>Each acl also has a fingerprint from
+ * {@link EncodedAcl#fingerprint(char[])} which does not change between
+ * runs. A dictionary persisted as id, fingerprint and acl can be reloaded
+ * with {@link #put(int, char[])} and checked against the fingerprints.
+ *
+ * <p>Ids are allocated from 0 upwards. An acl, once interned, stays in the
+ * dictionary.
+ *
+ *  @author Mike Douglass   douglm - bedework.org
+ */
+public class AclDictionary {
+  /* Wrapped acls - the buffers are never read through so their content
+   * and so their hash never change.
+   */
+  private final ConcurrentHashMap<CharBuffer, Integer> ids =
+          new ConcurrentHashMap<>();
+
+  /* Indexed by id. Replaced when grown */
+  private volatile char[][] acls = new char[16][];
+
+  /* Indexed by id. Only used holding the lock */
+  private long[] fingerprints = new long[16];
+
+  private int nextId;
+
+  /** Return the id of the acl, adding it if it is new.
+   *
+   * @param acl encoded acl - copied if added
+   * @return id
+   */
+  public int intern(final char[] acl) {
+    final Integer id = ids.get(CharBuffer.wrap(acl));
+
+    if (id != null) {
+      return id;
+    }
+
+    synchronized (this) {
+      final Integer sid = ids.get(CharBuffer.wrap(acl));
+
+      if (sid != null) {
+        return sid;
+      }
+
+      while (acls[nextId] != null) {
+        nextId++;
+        ensureCapacity(nextId);
+      }
+
+      add(nextId, acl.clone());
+
+      return nextId;
+    }
+  }
+
+  /** Add an acl with a known id, for example when loading a dictionary
+   * which was persisted.
+   *
+   * @param id  of the acl
+   * @param acl encoded acl - copied
+   * @throws AccessException if the id or acl is already in the dictionary
+   *         with something else
+   */
+  public synchronized void put(final int id,
+                               final char[] acl) throws AccessException {
+    if (id < 0) {
+      throw AccessException.badACL("acl id=" + id);
+    }
+
+    ensureCapacity(id);
+
+    final Integer prev = ids.get(CharBuffer.wrap(acl));
+
+    if ((prev != null) && (prev != id)) {
+      throw AccessException.badACL("acl already has id=" + prev);
+    }
+
+    final char[] cur = acls[id];
+
+    if (cur != null) {
+      if (!Arrays.equals(cur, acl)) {
+        throw AccessException.badACL("acl id=" + id + " in use");
+      }
+
+      return;
+    }
+
+    add(id, acl.clone());
+  }
+
+  /**
+   * @param acl encoded acl
+   * @return id of the acl or -1 if it is not in the dictionary
+   */
+  public int getId(final char[] acl) {
+    final Integer id = ids.get(CharBuffer.wrap(acl));
+
+    if (id == null) {
+      return -1;
+    }
+
+    return id;
+  }
+
+  /**
+   * @param id of an acl
+   * @return the acl - must not be modified
+   * @throws AccessException if there is no acl with the id
+   */
+  public char[] getAcl(final int id) throws AccessException {
+    char[] acl = find(id);
+
+    if (acl == null) {
+      /* It may have been added by another thread */
+      synchronized (this) {
+        acl = find(id);
+      }
+    }
+
+    if (acl == null) {
+      throw AccessException.badACL("unknown acl id=" + id);
+    }
+
+    return acl;
+  }
+
+  /**
+   * @param id of an acl
+   * @return fingerprint of the acl
+   * @throws AccessException if there is no acl with the id
+   */
+  public long getFingerprint(final int id) throws AccessException {
+    getAcl(id);
+
+    synchronized (this) {
+      return fingerprints[id];
+    }
+  }
+
+  /**
+   * @return number of acls in the dictionary
+   */
+  public int size() {
+    return ids.size();
+  }
+
+  private char[] find(final int id) {
+    final char[][] a = acls;
+
+    if ((id < 0) || (id >= a.length)) {
+      return null;
+    }
+
+    return a[id];
+  }
+
+  /* Must hold the lock */
+  private void add(final int id,
+                   final char[] acl) {
+    fingerprints[id] = EncodedAcl.fingerprint(acl);
+    acls[id] = acl;
+    ids.put(CharBuffer.wrap(acl), id);
+  }
+
+  /* Must hold the lock */
+  private void ensureCapacity(final int id) {
+    if (id < acls.length) {
+      return;
+    }
+
+    final int len = Math.max(id + 1, acls.length * 2);
+
+    fingerprints = Arrays.copyOf(fingerprints, len);
+    acls = Arrays.copyOf(acls, len);
+  }
+}
@@ -0,0 +1,214 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/** Immutable evaluation plan for an Acl. The aces are bucketed by who type
+ * once so that evaluation does not need to scan the entire acl for each who
+ * type it tries.
+ *
+ * <p>For who types which do not name a principal (owner, unauthenticated,
+ * authenticated, other and all) the privileges of all the matching aces are
+ * merged when the plan is built so a lookup is an array reference.
+ *
+ * <p>For the named who types (user, group etc) we keep the aces of that type
+ * which must still be matched against the principal. If there are more than
+ * a few of them we build, on first use, a table from the principal href of
+ * each ace to the merged privileges for that href. Resolving the hrefs needs
+ * the callback so the table is rebuilt if we are called with a different one
+ * or the resolved hrefs have been flushed.
+ * Inverted (notWho) aces cannot be indexed and are always scanned.
+ *
+ *  @author Mike Douglass   douglm - bedework.org
+ */
+final class AclPlan implements MergedPrivileges, WhoDefs {
+  private static final Ace[] noAces = {};
+
+  /* Below this we just scan the aces */
+  private static final int indexThreshold = 8;
+
+  /* Indexed by whoType. Only set for unnamed types. */
+  private final PrivilegeSet[] merged =
+          new PrivilegeSet[whoTypeNamed.length];
+
+  /* Indexed by whoType. Only set for named types. */
+  private final Ace[][] named = new Ace[whoTypeNamed.length][];
+
+  private static final class NamedIndex {
+    final Access.AccessCb cb;
+    final int generation;
+
+    /* Indexed by whoType. Non-null for indexed named types. */
+    final List<Map<String, PrivilegeSet>> byHref;
+
+    /* Indexed by whoType. Aces we must still match one by one. */
+    final Ace[][] unindexed;
+
+    NamedIndex(final Access.AccessCb cb,
+               final int generation) {
+      this.cb = cb;
+      this.generation = generation;
+      byHref = new ArrayList<>(Collections.nCopies(whoTypeNamed.length,
+                                                   null));
+      unindexed = new Ace[whoTypeNamed.length][];
+    }
+  }
+
+  private volatile NamedIndex index;
+
+  /** Build the plan
+   *
+   * @param acl to compile
+   * @throws AccessException on error
+   */
+  AclPlan(final Acl acl) throws AccessException {
+    final List<List<Ace>> buckets = new ArrayList<>(whoTypeNamed.length);
+
+    for (int i = 0; i < whoTypeNamed.length; i++) {
+      buckets.add(new ArrayList<>());
+    }
+
+    for (final Ace ace: acl.getAces()) {
+      final AceWho who = ace.getWho();
+      final int whoType = who.getWhoType();
+
+      if (whoTypeNamed[whoType]) {
+        buckets.get(whoType).add(ace);
+        continue;
+      }
+
+      /* "other" is matched like a named type with a null name */
+      if ((whoType == whoTypeOther) && !who.whoMatch(null, null)) {
+        continue;
+      }
+
+      merged[whoType] = PrivilegeSet.mergePrivileges(merged[whoType],
+                                                     ace.getHow(),
+                                                     ace.getInheritedFrom() != null);
+    }
+
+    for (int i = 0; i < whoTypeNamed.length; i++) {
+      if (whoTypeNamed[i]) {
+        named[i] = buckets.get(i).toArray(noAces);
+      }
+    }
+  }
+
+  /* Equivalent to Ace#findMergedPrivilege. */
+  @Override
+  public PrivilegeSet findMergedPrivilege(final Access.AccessCb cb,
+                                   final String name,
+                                   final int whoType) throws AccessException {
+    if (!whoTypeNamed[whoType]) {
+      return merged[whoType];
+    }
+
+    final Ace[] aces = named[whoType];
+
+    if (aces.length > indexThreshold) {
+      return findIndexed(cb, name, whoType);
+    }
+
+    return merge(null, aces, cb, name);
+  }
+
+  @Override
+  public boolean hasNamed(final int whoType) {
+    return named[whoType].length > 0;
+  }
+
+  private PrivilegeSet findIndexed(final Access.AccessCb cb,
+                                   final String name,
+                                   final int whoType) throws AccessException {
+    NamedIndex idx = index;
+    final int generation = AceWho.getHrefGeneration();
+
+    if ((idx == null) || (idx.generation != generation) ||
+            !Objects.equals(idx.cb, cb)) {
+      idx = buildIndex(cb, generation);
+      index = idx;
+    }
+
+    PrivilegeSet privileges = null;
+
+    if (name != null) {
+      privileges = idx.byHref.get(whoType).get(name);
+    }
+
+    return merge(privileges, idx.unindexed[whoType], cb, name);
+  }
+
+  private NamedIndex buildIndex(final Access.AccessCb cb,
+                                final int generation)
+          throws AccessException {
+    final NamedIndex idx = new NamedIndex(cb, generation);
+
+    for (int whoType = 0; whoType < whoTypeNamed.length; whoType++) {
+      final Ace[] aces = named[whoType];
+
+      if ((aces == null) || (aces.length <= indexThreshold)) {
+        continue;
+      }
+
+      final Map<String, PrivilegeSet> byHref = new HashMap<>(aces.length * 2);
+      final List<Ace> unindexed = new ArrayList<>();
+
+      for (final Ace ace: aces) {
+        final AceWho who = ace.getWho();
+
+        if (who.getNotWho() || (who.getWho() == null)) {
+          unindexed.add(ace);
+          continue;
+        }
+
+        final String href = who.getHref(cb);
+
+        byHref.put(href,
+                   PrivilegeSet.mergePrivileges(byHref.get(href),
+                                                ace.getHow(),
+                                                ace.getInheritedFrom() != null));
+      }
+
+      idx.byHref.set(whoType, byHref);
+      idx.unindexed[whoType] = unindexed.toArray(noAces);
+    }
+
+    return idx;
+  }
+
+  private static PrivilegeSet merge(PrivilegeSet privileges,
+                                    final Ace[] aces,
+                                    final Access.AccessCb cb,
+                                    final String name) throws AccessException {
+    for (final Ace ace: aces) {
+      if (ace.getWho().whoMatch(cb, name)) {
+        privileges = PrivilegeSet.mergePrivileges(privileges, ace.getHow(),
+                                                  ace.getInheritedFrom() != null);
+      }
+    }
+
+    return privileges;
+  }
+}
@@ -0,0 +1,598 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Evaluates an encoded acl in place. One pass over the characters merges
+ * the privileges of the aces for unnamed who types into bit masks and notes
+ * where the named aces are. No Acl, Ace or String objects are created.
+ *
+ * <p>The named aces are matched against a principal only when asked, so
+ * hrefs are resolved no more often than when evaluating a decoded acl. The
+ * AceWho needed to resolve an href is found from the encoded who without
+ * building a String once it has been seen.
+ *
+ * <p>Decoding an acl puts the aces in a map keyed by who so that a later ace
+ * for the same who replaces an earlier one. We only handle acls in the sorted
+ * form written by {@link Acl#encode()}, where that cannot happen. For
+ * anything else, including malformed acls, {@link #scan()} returns false and
+ * the acl should be decoded.
+ *
+ *  @author Mike Douglass   douglm - bedework.org
+ */
+final class AclScanner implements MergedPrivileges, PrivilegeDefs, WhoDefs {
+
+  private static final long allPrivsMask = PrivilegeSet.allPrivsMask;
+
+  /* Packed into the flags for a named ace */
+  private static final int typeMask = 0xff;
+  private static final int notWhoBit = 0x100;
+  private static final int inheritedBit = 0x200;
+
+  /* AceWho objects for the named aces we have met, keyed by their encoding */
+  private static final ConcurrentHashMap<WhoKey, AceWho> aceWhos =
+          new ConcurrentHashMap<>();
+
+  private final char[] chars;
+
+  /* Indexed by whoType * 4 - allowed, denied, allowedInherited and
+   * deniedInherited masks merged for the unnamed types.
+   */
+  private final long[] unnamed = new long[whoTypeNamed.length * 4];
+
+  /* Bit per who type */
+  private int unnamedFound;
+  private int namedFound;
+
+  /* For each named ace - start of who, length of who (-1 for none) and
+   * flags.
+   */
+  private int[] namedWho;
+
+  /* For each named ace - allowed and denied masks */
+  private long[] namedHow;
+
+  private int namedCount;
+
+  /* Reused to merge named aces */
+  private final long[] merged = new long[4];
+
+  /* Reused to look up AceWho objects */
+  private WhoKey probe;
+
+  /**
+   * @param chars encoded acl - not null
+   */
+  AclScanner(final char[] chars) {
+    this.chars = chars;
+  }
+
+  /** Scan the acl.
+   *
+   * @return false if the acl is malformed or not in sorted form
+   */
+  boolean scan() {
+    final char[] c = chars;
+    final int len = c.length;
+    int pos = 0;
+
+    boolean first = true;
+    boolean prevNotWho = false;
+    int prevType = 0;
+    int prevWhoStart = 0;
+    int prevWhoLen = 0;
+
+    while (pos < len) {
+      /* ------------------- who ------------------- */
+      final boolean notWho;
+      char ch = c[pos];
+      pos++;
+
+      if (ch == notWhoFlag) {
+        notWho = true;
+      } else if (ch == whoFlag) {
+        notWho = false;
+      } else {
+        return false;
+      }
+
+      if (pos == len) {
+        return false;
+      }
+
+      final int whoType = AceWho.whoTypeOf(c[pos]);
+      pos++;
+
+      if ((whoType < 0) || (pos == len)) {
+        return false;
+      }
+
+      final int whoStart;
+      final int whoLen;
+
+      if (c[pos] == 'N') {
+        pos++;
+        whoStart = pos;
+        whoLen = -1;
+      } else {
+        final int lenEnd = lengthEnd(c, pos);
+        if (lenEnd < 0) {
+          return false;
+        }
+
+        final int l = length(c, pos, lenEnd);
+        whoStart = lenEnd + 1;
+
+        if ((l < 0) || ((len - whoStart) < l)) {
+          return false;
+        }
+
+        whoLen = l;
+        pos = whoStart + l;
+      }
+
+      if (!first &&
+              (compareWho(prevNotWho, prevType, prevWhoStart, prevWhoLen,
+                          notWho, whoType, whoStart, whoLen) >= 0)) {
+        // Not sorted or a repeated who
+        return false;
+      }
+
+      first = false;
+      prevNotWho = notWho;
+      prevType = whoType;
+      prevWhoStart = whoStart;
+      prevWhoLen = whoLen;
+
+      /* ------------------- privileges ------------------- */
+      /* As for Ace - start with everything denied */
+      long a = 0;
+      long d = allPrivsMask;
+
+      for (;;) {
+        if (pos == len) {
+          return false;
+        }
+
+        ch = c[pos];
+
+        if ((ch == ' ') || (ch == inheritedFlag)) {
+          break;
+        }
+
+        final boolean denial;
+
+        if ((ch == denied) || (ch == oldDenied)) {
+          denial = true;
+        } else if ((ch == allowed) || (ch == oldAllowed)) {
+          denial = false;
+        } else {
+          return false;
+        }
+
+        if ((pos + 1) == len) {
+          return false;
+        }
+
+        ch = c[pos + 1];
+
+        /* Ace.decode takes this as the inherited flag and fails */
+        if (ch == inheritedFlag) {
+          return false;
+        }
+
+        final Privilege p = Privileges.fromEncoding(ch, false);
+
+        if (p == null) {
+          return false;
+        }
+
+        final long m = p.getMask();
+
+        pos += 2;
+
+        if (denial) {
+          a &= ~m;
+          d |= m;
+        } else {
+          a |= m;
+          d &= ~m;
+        }
+      }
+
+      /* ------------------- inherited ------------------- */
+      boolean inherited = false;
+
+      if (c[pos] == inheritedFlag) {
+        pos++;
+
+        if (pos == len) {
+          return false;
+        }
+
+        if (c[pos] == 'N') {
+          // Null path - not inherited
+          pos++;
+        } else {
+          final int lenEnd = lengthEnd(c, pos);
+          if (lenEnd < 0) {
+            return false;
+          }
+
+          final int l = length(c, pos, lenEnd);
+          pos = lenEnd + 1;
+
+          if ((l < 0) || ((len - pos) < l)) {
+            return false;
+          }
+
+          pos += l;
+          inherited = true;
+        }
+      }
+
+      if ((pos == len) || (c[pos] != ' ')) {
+        return false;
+      }
+
+      pos++;
+
+      /* ------------------- save ------------------- */
+      if (!whoTypeNamed[whoType]) {
+        /* "other" is matched like a named type with a null name */
+        if ((whoType != whoTypeOther) || ((whoLen < 0) != notWho)) {
+          merge(unnamed, whoType * 4, a, d, inherited);
+          unnamedFound |= 1 << whoType;
+        }
+
+        continue;
+      }
+
+      int flags = whoType;
+      if (notWho) {
+        flags |= notWhoBit;
+      }
+      if (inherited) {
+        flags |= inheritedBit;
+      }
+
+      addNamed(whoStart, whoLen, flags, a, d);
+      namedFound |= 1 << whoType;
+    }
+
+    return true;
+  }
+
+  @Override
+  public PrivilegeSet findMergedPrivilege(final Access.AccessCb cb,
+                                          final String name,
+                                          final int whoType)
+          throws AccessException {
+    final int bit = 1 << whoType;
+
+    if (!whoTypeNamed[whoType]) {
+      if ((unnamedFound & bit) == 0) {
+        return null;
+      }
+
+      final int i = whoType * 4;
+
+      return PrivilegeSet.fromMasks(unnamed[i], unnamed[i + 1],
+                                    unnamed[i + 2], unnamed[i + 3]);
+    }
+
+    if ((namedFound & bit) == 0) {
+      return null;
+    }
+
+    final long[] m = merged;
+    m[0] = 0;
+    m[1] = 0;
+    m[2] = 0;
+    m[3] = 0;
+    boolean found = false;
+
+    for (int i = 0; i < namedCount; i++) {
+      final int flags = namedWho[i * 3 + 2];
+
+      if (((flags & typeMask) != whoType) || !whoMatch(cb, name, i, flags)) {
+        continue;
+      }
+
+      merge(m, 0, namedHow[i * 2], namedHow[i * 2 + 1],
+            (flags & inheritedBit) != 0);
+      found = true;
+    }
+
+    if (!found) {
+      return null;
+    }
+
+    return PrivilegeSet.fromMasks(m[0], m[1], m[2], m[3]);
+  }
+
+  @Override
+  public boolean hasNamed(final int whoType) {
+    return (namedFound & (1 << whoType)) != 0;
+  }
+
+  /* As AceWho.whoMatch */
+  private boolean whoMatch(final Access.AccessCb cb,
+                           final String name,
+                           final int i,
+                           final int flags) throws AccessException {
+    final boolean notWho = (flags & notWhoBit) != 0;
+    final int whoLen = namedWho[i * 3 + 1];
+
+    if ((name == null) && (whoLen < 0)) {
+      return !notWho;
+    }
+
+    if ((name == null) || (whoLen < 0)) {
+      return notWho;
+    }
+
+    final AceWho who = aceWho(namedWho[i * 3], whoLen, flags & typeMask,
+                              notWho);
+
+    return name.equals(who.getHref(cb)) != notWho;
+  }
+
+  private AceWho aceWho(final int start,
+                        final int len,
+                        final int whoType,
+                        final boolean notWho) {
+    WhoKey p = probe;
+
+    if (p == null) {
+      p = new WhoKey();
+      probe = p;
+    }
+
+    p.set(chars, start, len, whoType, notWho);
+
+    final AceWho who = aceWhos.get(p);
+
+    if (who != null) {
+      return who;
+    }
+
+    final String whoStr = new String(chars, start, len);
+    final AceWho newWho = AceWho.getAceWho(whoStr, whoType, notWho);
+
+    final WhoKey key = new WhoKey();
+    key.set(whoStr.toCharArray(), 0, len, whoType, notWho);
+
+    final AceWho prev = aceWhos.putIfAbsent(key, newWho);
+
+    if (prev != null) {
+      return prev;
+    }
+
+    return newWho;
+  }
+
+  private void addNamed(final int whoStart,
+                        final int whoLen,
+                        final int flags,
+                        final long a,
+                        final long d) {
+    if (namedWho == null) {
+      namedWho = new int[4 * 3];
+      namedHow = new long[4 * 2];
+    } else if (namedWho.length == namedCount * 3) {
+      final int[] w = new int[namedWho.length * 2];
+      System.arraycopy(namedWho, 0, w, 0, namedWho.length);
+      namedWho = w;
+
+      final long[] h = new long[namedHow.length * 2];
+      System.arraycopy(namedHow, 0, h, 0, namedHow.length);
+      namedHow = h;
+    }
+
+    namedWho[namedCount * 3] = whoStart;
+    namedWho[namedCount * 3 + 1] = whoLen;
+    namedWho[namedCount * 3 + 2] = flags;
+    namedHow[namedCount * 2] = a;
+    namedHow[namedCount * 2 + 1] = d;
+    namedCount++;
+  }
+
+  /* Same result as PrivilegeSet.mergePrivileges for the four masks at m[i] */
+  static void merge(final long[] m,
+                    final int i,
+                    long a,
+                    long d,
+                    final boolean inherited) {
+    long ai = 0;
+    long di = 0;
+
+    if (inherited) {
+      ai = a;
+      di = d;
+      a = 0;
+      d = 0;
+    }
+
+    a |= m[i];
+    d = (d | m[i + 1]) & ~a;
+    ai = (ai | m[i + 2]) & ~(a | d);
+    di = (di | m[i + 3]) & ~(a | d | ai);
+
+    m[i] = a;
+    m[i + 1] = d;
+    m[i + 2] = ai;
+    m[i + 3] = di;
+  }
+
+  /* Index of the blank terminating a length starting at pos or -1 */
+  static int lengthEnd(final char[] c,
+                       final int pos) {
+    for (int i = pos; i < c.length; i++) {
+      final char ch = c[i];
+
+      if (ch == ' ') {
+        return i;
+      }
+
+      if ((ch < '0') || (ch > '9')) {
+        return -1;
+      }
+    }
+
+    return -1;
+  }
+
+  /* Value of the digits from start to end or -1 if too large */
+  static int length(final char[] c,
+                    final int start,
+                    final int end) {
+    int res = 0;
+
+    for (int i = start; i < end; i++) {
+      res = res * 10 + (c[i] - '0');
+
+      if (res > c.length) {
+        return -1;
+      }
+    }
+
+    return res;
+  }
+
+  /* Same ordering as AceWho.compareTo - who strings compared as for
+   * String.compareTo.
+   */
+  private int compareWho(final boolean notWho1,
+                         final int whoType1,
+                         final int start1,
+                         final int len1,
+                         final boolean notWho2,
+                         final int whoType2,
+                         final int start2,
+                         final int len2) {
+    if (notWho1 != notWho2) {
+      if (notWho1) {
+        return -1;
+      }
+      return 1;
+    }
+
+    if (whoType1 != whoType2) {
+      return (whoType1 < whoType2) ? -1 : 1;
+    }
+
+    if (!whoTypeNamed[whoType1]) {
+      return 0;
+    }
+
+    if ((len1 < 0) && (len2 < 0)) {
+      return 0;
+    }
+
+    if (len1 < 0) {
+      return -1;
+    }
+
+    if (len2 < 0) {
+      return 1;
+    }
+
+    final char[] c = chars;
+    final int n = Math.min(len1, len2);
+
+    for (int i = 0; i < n; i++) {
+      final char c1 = c[start1 + i];
+      final char c2 = c[start2 + i];
+
+      if (c1 != c2) {
+        return c1 - c2;
+      }
+    }
+
+    return len1 - len2;
+  }
+
+  /* Key for the AceWho map. Probes refer to the acl being scanned, keys in
+   * the map to their own copy.
+   */
+  private static final class WhoKey {
+    private char[] chars;
+    private int start;
+    private int len;
+    private int whoType;
+    private boolean notWho;
+    private int hash;
+
+    void set(final char[] chars,
+             final int start,
+             final int len,
+             final int whoType,
+             final boolean notWho) {
+      this.chars = chars;
+      this.start = start;
+      this.len = len;
+      this.whoType = whoType;
+      this.notWho = notWho;
+
+      int h = whoType;
+      if (notWho) {
+        h += 31;
+      }
+
+      for (int i = start; i < start + len; i++) {
+        h = 31 * h + chars[i];
+      }
+
+      hash = h;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) {
+        return true;
+      }
+
+      if (!(o instanceof WhoKey)) {
+        return false;
+      }
+
+      final WhoKey that = (WhoKey)o;
+
+      if ((hash != that.hash) || (len != that.len) ||
+              (whoType != that.whoType) || (notWho != that.notWho)) {
+        return false;
+      }
+
+      for (int i = 0; i < len; i++) {
+        if (chars[start + i] != that.chars[that.start + i]) {
+          return false;
+        }
+      }
+
+      return true;
+    }
+  }
+}
@@ -0,0 +1,88 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access;
+
+import java.nio.ByteBuffer;
+
+/** A view of ASCII characters held in a ByteBuffer. Encoded acls are pure
+ * ASCII so this lets us look at an acl in, for example, a mapped file
+ * without copying it. Only absolute gets are used so the position and limit
+ * of the buffer are unaffected.
+ *
+ *  @author Mike Douglass   douglm - bedework.org
+ */
+final class AsciiChars implements CharSequence {
+  private final ByteBuffer buf;
+  private final int offset;
+  private final int length;
+
+  /**
+   * @param buf    holding the characters
+   * @param offset of the first character
+   * @param length number of characters
+   */
+  AsciiChars(final ByteBuffer buf,
+             final int offset,
+             final int length) {
+    if ((offset < 0) || (length < 0) ||
+            (offset > (buf.capacity() - length))) {
+      throw new IndexOutOfBoundsException("offset=" + offset +
+                                                  " length=" + length);
+    }
+
+    this.buf = buf;
+    this.offset = offset;
+    this.length = length;
+  }
+
+  @Override
+  public int length() {
+    return length;
+  }
+
+  @Override
+  public char charAt(final int index) {
+    if ((index < 0) || (index >= length)) {
+      throw new IndexOutOfBoundsException("index=" + index);
+    }
+
+    return (char)(buf.get(offset + index) & 0xff);
+  }
+
+  @Override
+  public CharSequence subSequence(final int start,
+                                  final int end) {
+    if ((start < 0) || (end > length) || (start > end)) {
+      throw new IndexOutOfBoundsException("start=" + start + " end=" + end);
+    }
+
+    return new AsciiChars(buf, offset + start, end - start);
+  }
+
+  @Override
+  public String toString() {
+    final char[] chars = new char[length];
+
+    for (int i = 0; i < length; i++) {
+      chars[i] = (char)(buf.get(offset + i) & 0xff);
+    }
+
+    return new String(chars);
+  }
+}
@@ -0,0 +1,684 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** A compact binary form of an encoded acl. Conversion to and from the char
+ * form of {@link EncodedAcl} is lossless.
+ *
+ * <p>The binary form is <ul>
+ * <li>the {@link #magic} byte, which can never start an acl in char form</li>
+ * <li>a varint of flags - {@link #sortedFlag} if the aces are in the sorted
+ * form written by {@link Acl#encode()}</li>
+ * <li>a varint count of strings followed by each string as a varint
+ * length and its bytes. These are the principals and inherited-from paths
+ * of the aces, each held once.</li>
+ * <li>the aces to the end of the array.</li>
+ * </ul>
+ *
+ * <p>Each ace is <ul>
+ * <li>a varint holding the who type in the low 4 bits and the ace flags
+ * above them</li>
+ * <li>if the who is not null a varint reference to its string</li>
+ * <li>a varint mask, indexed by privilege index, of the allowed privileges.
+ * Everything else is denied.</li>
+ * <li>if the privileges as listed cannot be rebuilt from the mask, a varint
+ * count and one byte per privilege as listed</li>
+ * <li>if the ace is inherited a varint reference to the path</li>
+ * </ul>
+ *
+ * <p>An acl which does not convert, for example because it is malformed, is
+ * held as its characters. Evaluation accepts either form.
+ *
+ * <p>Characters are written in UTF-8 except that a surrogate which is not
+ * half of a pair is written on its own as a three byte sequence, as WTF-8
+ * does. Any characters survive the round trip and valid UTF-8 reads as
+ * before.
+ *
+ *  @author Mike Douglass   douglm - bedework.org
+ */
+public final class BinaryAcl implements PrivilegeDefs, WhoDefs {
+  /** First byte of an acl in binary form */
+  public static final byte magic = (byte)0xB1;
+
+  /* Header flags */
+  static final int sortedFlag = 1;
+
+  /* The who type is held in the low bits of the first varint of an ace */
+  static final int whoTypeBits = 4;
+  static final int whoTypeMask = (1 << whoTypeBits) - 1;
+
+  /* Ace flags - above the who type */
+  static final int aceNotWho = 1;
+  static final int aceHasWho = 2;
+  static final int aceInherited = 4;
+  static final int aceHasPath = 8;
+  static final int aceHasPrivs = 16;
+
+  /* Bits of a listed privilege */
+  static final int privIndexMask = 0x1f;
+  static final int privDenial = 0x20;
+  static final int privOld = 0x40;
+
+  private BinaryAcl() {
+  }
+
+  /**
+   * @param val acl in binary or char form
+   * @return true if val is in binary form
+   */
+  public static boolean isBinary(final byte[] val) {
+    return (val != null) && (val.length > 0) && (val[0] == magic);
+  }
+
+  /** Convert an acl from char to binary form.
+   *
+   * @param acl encoded acl
+   * @return acl in binary form or, if it cannot be converted, its
+   *         characters in UTF-8
+   */
+  public static byte[] fromChars(final char[] acl) {
+    final byte[] bin = toBinary(acl);
+
+    if (bin != null) {
+      try {
+        if (Arrays.equals(toChars(bin), acl)) {
+          return bin;
+        }
+      } catch (final AccessException ignored) {
+        // Held as chars below
+      }
+    }
+
+    return utf8(CharBuffer.wrap(acl));
+  }
+
+  /** Convert an acl to char form.
+   *
+   * @param acl acl from {@link #fromChars(char[])}
+   * @return encoded acl
+   * @throws AccessException if the binary form is malformed
+   */
+  public static char[] toChars(final byte[] acl) throws AccessException {
+    if (!isBinary(acl)) {
+      return fromUtf8(acl, 0, acl.length).toCharArray();
+    }
+
+    final Reader r = new Reader(acl);
+
+    r.varint(); // flags
+
+    final String[] strings = r.strings();
+    final StringBuilder sb = new StringBuilder(acl.length * 2);
+
+    while (r.hasMore()) {
+      final long head = r.varint();
+      final int whoType = (int)(head & whoTypeMask);
+      final int flags = (int)(head >>> whoTypeBits);
+
+      if (whoType >= whoTypeFlags.length) {
+        throw AccessException.badACE("who type");
+      }
+
+      if ((flags & aceNotWho) != 0) {
+        sb.append(notWhoFlag);
+      } else {
+        sb.append(whoFlag);
+      }
+
+      sb.append(whoTypeFlags[whoType]);
+
+      if ((flags & aceHasWho) != 0) {
+        appendString(sb, strings[r.index(strings.length)]);
+      } else {
+        sb.append('N');
+      }
+
+      final long allowedMask = r.varint();
+
+      if ((flags & aceHasPrivs) != 0) {
+        final int n = r.int32();
+
+        for (int i = 0; i < n; i++) {
+          final int p = r.getByte();
+          final int index = p & privIndexMask;
+          final boolean denial = (p & privDenial) != 0;
+
+          if (index > privMaxType) {
+            throw AccessException.badACL("privilege index=" + index);
+          }
+
+          if ((p & privOld) != 0) {
+            sb.append(denial ? oldDenied : oldAllowed);
+          } else {
+            sb.append(denial ? denied : allowed);
+          }
+
+          sb.append(Privileges.makePriv(index, denial).getEncoding());
+        }
+      } else {
+        appendAllowed(sb, Privileges.getPrivAll(), allowedMask);
+      }
+
+      if ((flags & aceInherited) != 0) {
+        sb.append(inheritedFlag);
+
+        if ((flags & aceHasPath) != 0) {
+          appendString(sb, strings[r.index(strings.length)]);
+        } else {
+          sb.append('N');
+        }
+      }
+
+      sb.append(' ');
+    }
+
+    final char[] res = new char[sb.length()];
+    sb.getChars(0, res.length, res, 0);
+
+    return res;
+  }
+
+  /* Null if the acl is malformed */
+  private static byte[] toBinary(final char[] c) {
+    final ByteArrayOutputStream aces = new ByteArrayOutputStream(c.length);
+    final ByteArrayOutputStream privs = new ByteArrayOutputStream();
+    final Map<String, Integer> stringIds = new HashMap<>();
+    final List<String> strings = new ArrayList<>();
+    final StringBuilder canonical = new StringBuilder();
+
+    final int len = c.length;
+    int pos = 0;
+
+    while (pos < len) {
+      /* ------------------- who ------------------- */
+      int flags = 0;
+      char ch = c[pos];
+      pos++;
+
+      if (ch == notWhoFlag) {
+        flags |= aceNotWho;
+      } else if (ch != whoFlag) {
+        return null;
+      }
+
+      if (pos == len) {
+        return null;
+      }
+
+      final int whoType = AceWho.whoTypeOf(c[pos]);
+      pos++;
+
+      if ((whoType < 0) || (pos == len)) {
+        return null;
+      }
+
+      int whoId = -1;
+
+      if (c[pos] == 'N') {
+        pos++;
+      } else {
+        final int lenEnd = AclScanner.lengthEnd(c, pos);
+        if (lenEnd < 0) {
+          return null;
+        }
+
+        final int l = AclScanner.length(c, pos, lenEnd);
+        pos = lenEnd + 1;
+
+        if ((l < 0) || ((len - pos) < l)) {
+          return null;
+        }
+
+        whoId = stringId(new String(c, pos, l), stringIds, strings);
+        flags |= aceHasWho;
+        pos += l;
+      }
+
+      /* ------------------- privileges ------------------- */
+      final int privStart = pos;
+      long allowedMask = 0;
+      privs.reset();
+
+      for (;;) {
+        if (pos == len) {
+          return null;
+        }
+
+        ch = c[pos];
+
+        if ((ch == ' ') || (ch == inheritedFlag)) {
+          break;
+        }
+
+        final boolean denial;
+        int p = 0;
+
+        if ((ch == denied) || (ch == oldDenied)) {
+          denial = true;
+          p |= privDenial;
+        } else if ((ch == allowed) || (ch == oldAllowed)) {
+          denial = false;
+        } else {
+          return null;
+        }
+
+        if ((ch == oldDenied) || (ch == oldAllowed)) {
+          p |= privOld;
+        }
+
+        if ((pos + 1) == len) {
+          return null;
+        }
+
+        ch = c[pos + 1];
+
+        /* Ace.decode takes this as the inherited flag and fails */
+        if (ch == inheritedFlag) {
+          return null;
+        }
+
+        final Privilege priv = Privileges.fromEncoding(ch, denial);
+
+        if (priv == null) {
+          return null;
+        }
+
+        pos += 2;
+
+        if (denial) {
+          allowedMask &= ~priv.getMask();
+        } else {
+          allowedMask |= priv.getMask();
+        }
+
+        privs.write(p | priv.getIndex());
+      }
+
+      canonical.setLength(0);
+      appendAllowed(canonical, Privileges.getPrivAll(), allowedMask);
+
+      if (!sameChars(canonical, c, privStart, pos)) {
+        flags |= aceHasPrivs;
+      }
+
+      /* ------------------- inherited ------------------- */
+      int pathId = -1;
+
+      if (c[pos] == inheritedFlag) {
+        flags |= aceInherited;
+        pos++;
+
+        if (pos == len) {
+          return null;
+        }
+
+        if (c[pos] == 'N') {
+          pos++;
+        } else {
+          final int lenEnd = AclScanner.lengthEnd(c, pos);
+          if (lenEnd < 0) {
+            return null;
+          }
+
+          final int l = AclScanner.length(c, pos, lenEnd);
+          pos = lenEnd + 1;
+
+          if ((l < 0) || ((len - pos) < l)) {
+            return null;
+          }
+
+          pathId = stringId(new String(c, pos, l), stringIds, strings);
+          flags |= aceHasPath;
+          pos += l;
+        }
+      }
+
+      if ((pos == len) || (c[pos] != ' ')) {
+        return null;
+      }
+
+      pos++;
+
+      /* ------------------- write ------------------- */
+      writeVarint(aces, whoType | (flags << whoTypeBits));
+
+      if (whoId >= 0) {
+        writeVarint(aces, whoId);
+      }
+
+      writeVarint(aces, allowedMask);
+
+      if ((flags & aceHasPrivs) != 0) {
+        final byte[] pb = privs.toByteArray();
+
+        writeVarint(aces, pb.length);
+        aces.write(pb, 0, pb.length);
+      }
+
+      if (pathId >= 0) {
+        writeVarint(aces, pathId);
+      }
+    }
+
+    final ByteArrayOutputStream out =
+            new ByteArrayOutputStream(aces.size() + 16);
+
+    out.write(magic);
+
+    if (new AclScanner(c).scan()) {
+      writeVarint(out, sortedFlag);
+    } else {
+      writeVarint(out, 0);
+    }
+
+    writeVarint(out, strings.size());
+
+    for (final String s: strings) {
+      final byte[] b = utf8(s);
+
+      writeVarint(out, b.length);
+      out.write(b, 0, b.length);
+    }
+
+    final byte[] ab = aces.toByteArray();
+    out.write(ab, 0, ab.length);
+
+    return out.toByteArray();
+  }
+
+  private static int stringId(final String s,
+                              final Map<String, Integer> stringIds,
+                              final List<String> strings) {
+    final Integer id = stringIds.get(s);
+
+    if (id != null) {
+      return id;
+    }
+
+    strings.add(s);
+    stringIds.put(s, strings.size() - 1);
+
+    return strings.size() - 1;
+  }
+
+  /* The fewest allowed privileges which give exactly the mask. Top down so
+   * the result is in the order of the privilege tree.
+   */
+  private static void appendAllowed(final StringBuilder sb,
+                                    final Privilege p,
+                                    final long mask) {
+    final long m = p.getMask();
+
+    if ((m & mask) == m) {
+      sb.append(allowed);
+      sb.append(p.getEncoding());
+      return;
+    }
+
+    for (final Privilege cp: p.getContainedPrivileges()) {
+      appendAllowed(sb, cp, mask);
+    }
+  }
+
+  private static boolean sameChars(final StringBuilder sb,
+                                   final char[] c,
+                                   final int start,
+                                   final int end) {
+    if (sb.length() != (end - start)) {
+      return false;
+    }
+
+    for (int i = start; i < end; i++) {
+      if (sb.charAt(i - start) != c[i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private static void appendString(final StringBuilder sb,
+                                   final String s) {
+    sb.append(EncodedAcl.encodedLength(s.length()));
+    sb.append(s);
+  }
+
+  /* UTF-8 but a lone surrogate is written on its own - see above */
+  static byte[] utf8(final CharSequence s) {
+    final int len = s.length();
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(len + 8);
+
+    for (int i = 0; i < len; i++) {
+      final char c = s.charAt(i);
+
+      if (c < 0x80) {
+        out.write(c);
+      } else if (c < 0x800) {
+        out.write(0xc0 | (c >> 6));
+        out.write(0x80 | (c & 0x3f));
+      } else if (Character.isHighSurrogate(c) && ((i + 1) < len) &&
+              Character.isLowSurrogate(s.charAt(i + 1))) {
+        final int cp = Character.toCodePoint(c, s.charAt(i + 1));
+        i++;
+
+        out.write(0xf0 | (cp >> 18));
+        out.write(0x80 | ((cp >> 12) & 0x3f));
+        out.write(0x80 | ((cp >> 6) & 0x3f));
+        out.write(0x80 | (cp & 0x3f));
+      } else {
+        out.write(0xe0 | (c >> 12));
+        out.write(0x80 | ((c >> 6) & 0x3f));
+        out.write(0x80 | (c & 0x3f));
+      }
+    }
+
+    return out.toByteArray();
+  }
+
+  /* Reverses utf8 - anything else which is not UTF-8 is rejected */
+  static String fromUtf8(final byte[] b,
+                         final int start,
+                         final int len) throws AccessException {
+    final StringBuilder sb = new StringBuilder(len);
+
+    fromUtf8(b, start, len, sb);
+
+    return sb.toString();
+  }
+
+  /* Only checks the bytes if sb is null */
+  static void fromUtf8(final byte[] b,
+                       final int start,
+                       final int len,
+                       final StringBuilder sb) throws AccessException {
+    final int end = start + len;
+    int pos = start;
+
+    while (pos < end) {
+      final int b0 = b[pos] & 0xff;
+      final int n;
+      int cp;
+
+      if (b0 < 0x80) {
+        if (sb != null) {
+          sb.append((char)b0);
+        }
+        pos++;
+        continue;
+      }
+
+      if ((b0 >= 0xc2) && (b0 <= 0xdf)) {
+        n = 1;
+        cp = b0 & 0x1f;
+      } else if ((b0 >= 0xe0) && (b0 <= 0xef)) {
+        n = 2;
+        cp = b0 & 0x0f;
+      } else if ((b0 >= 0xf0) && (b0 <= 0xf4)) {
+        n = 3;
+        cp = b0 & 0x07;
+      } else {
+        throw AccessException.badACL("utf-8");
+      }
+
+      if ((end - pos) <= n) {
+        throw AccessException.badACL("utf-8");
+      }
+
+      for (int i = 1; i <= n; i++) {
+        final int bi = b[pos + i] & 0xff;
+
+        if ((bi & 0xc0) != 0x80) {
+          throw AccessException.badACL("utf-8");
+        }
+
+        cp = (cp << 6) | (bi & 0x3f);
+      }
+
+      /* No overlong forms and nothing past the last code point */
+      if (((n == 2) && (cp < 0x800)) ||
+              ((n == 3) && ((cp < 0x10000) || (cp > Character.MAX_CODE_POINT)))) {
+        throw AccessException.badACL("utf-8");
+      }
+
+      if (sb != null) {
+        sb.appendCodePoint(cp);
+      }
+      pos += n + 1;
+    }
+  }
+
+  private static void writeVarint(final ByteArrayOutputStream out,
+                                  long val) {
+    while ((val & ~0x7fL) != 0) {
+      out.write((int)((val & 0x7f) | 0x80));
+      val >>>= 7;
+    }
+
+    out.write((int)val);
+  }
+
+  /* Reads the parts of a binary acl */
+  static final class Reader {
+    private final byte[] b;
+    private int pos = 1; // Past the magic byte
+
+    Reader(final byte[] b) {
+      this.b = b;
+    }
+
+    boolean hasMore() {
+      return pos < b.length;
+    }
+
+    int getPos() {
+      return pos;
+    }
+
+    int getByte() throws AccessException {
+      if (pos == b.length) {
+        throw AccessException.badACLLength();
+      }
+
+      final int res = b[pos] & 0xff;
+      pos++;
+
+      return res;
+    }
+
+    long varint() throws AccessException {
+      long res = 0;
+
+      for (int shift = 0; shift < 64; shift += 7) {
+        final int v = getByte();
+
+        /* Only one bit of the tenth byte fits */
+        if ((shift == 63) && ((v & 0x7e) != 0)) {
+          throw AccessException.badACL("varint");
+        }
+
+        res |= (long)(v & 0x7f) << shift;
+
+        if ((v & 0x80) == 0) {
+          return res;
+        }
+      }
+
+      throw AccessException.badACL("varint");
+    }
+
+    /* A count or length - never more than the number of bytes */
+    int int32() throws AccessException {
+      final long res = varint();
+
+      if ((res < 0) || (res > b.length)) {
+        throw AccessException.badACLLength();
+      }
+
+      return (int)res;
+    }
+
+    /* A reference to one of count strings */
+    int index(final int count) throws AccessException {
+      final long res = varint();
+
+      if ((res < 0) || (res >= count)) {
+        throw AccessException.badACL("string reference=" + res);
+      }
+
+      return (int)res;
+    }
+
+    /* Skip len bytes returning the position of the first */
+    int skip(final int len) throws AccessException {
+      if ((b.length - pos) < len) {
+        throw AccessException.badACLLength();
+      }
+
+      final int res = pos;
+      pos += len;
+
+      return res;
+    }
+
+    String string(final int start,
+                  final int len) throws AccessException {
+      return fromUtf8(b, start, len);
+    }
+
+    String[] strings() throws AccessException {
+      final String[] res = new String[int32()];
+
+      for (int i = 0; i < res.length; i++) {
+        final int len = int32();
+
+        res[i] = string(skip(len), len);
+      }
+
+      return res;
+    }
+  }
+}
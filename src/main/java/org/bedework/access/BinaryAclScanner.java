@@ -0,0 +1,280 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access;
+
+import static org.bedework.access.BinaryAcl.aceHasPath;
+import static org.bedework.access.BinaryAcl.aceHasPrivs;
+import static org.bedework.access.BinaryAcl.aceHasWho;
+import static org.bedework.access.BinaryAcl.aceNotWho;
+import static org.bedework.access.BinaryAcl.sortedFlag;
+import static org.bedework.access.BinaryAcl.whoTypeBits;
+import static org.bedework.access.BinaryAcl.whoTypeMask;
+
+
+/** Evaluates an acl in the binary form of {@link BinaryAcl} as
+ * {@link AclScanner} does for the char form. The privileges of each ace are
+ * already a mask so nothing is parsed per privilege. Strings are only
+ * decoded for named aces we need to match.
+ *
+ * <p>As for AclScanner only acls in sorted form are handled. For anything
+ * else {@link #scan()} returns false and the acl should be decoded.
+ *
+ *  @author Mike Douglass   douglm - bedework.org
+ */
+final class BinaryAclScanner implements MergedPrivileges, PrivilegeDefs,
+        WhoDefs {
+
+  private static final long allPrivsMask = PrivilegeSet.allPrivsMask;
+
+  /* Packed into the flags for a named ace */
+  private static final int typeMask = 0xff;
+  private static final int notWhoBit = 0x100;
+  private static final int inheritedBit = 0x200;
+
+  private final byte[] bytes;
+
+  /* Start and length of each string */
+  private int[] strings;
+
+  /* AceWho for each string and who type once needed */
+  private AceWho[] aceWhos;
+
+  /* As for AclScanner */
+  private final long[] unnamed = new long[whoTypeNamed.length * 4];
+
+  private int unnamedFound;
+  private int namedFound;
+
+  /* For each named ace - string index of who (-1 for none) and flags */
+  private int[] namedWho;
+
+  /* For each named ace - allowed mask */
+  private long[] namedAllowed;
+
+  private int namedCount;
+
+  private final long[] merged = new long[4];
+
+  /**
+   * @param bytes acl in binary form - not null
+   */
+  BinaryAclScanner(final byte[] bytes) {
+    this.bytes = bytes;
+  }
+
+  /** Scan the acl.
+   *
+   * @return false if the acl is not in sorted form
+   * @throws AccessException if the acl is malformed
+   */
+  boolean scan() throws AccessException {
+    final BinaryAcl.Reader r = new BinaryAcl.Reader(bytes);
+
+    if ((r.varint() & sortedFlag) == 0) {
+      return false;
+    }
+
+    strings = new int[r.int32() * 2];
+
+    for (int i = 0; i < strings.length; i += 2) {
+      final int len = r.int32();
+
+      strings[i] = r.skip(len);
+      strings[i + 1] = len;
+
+      /* Malformed strings fail here, not when first matched */
+      BinaryAcl.fromUtf8(bytes, strings[i], len, null);
+    }
+
+    final int stringCount = strings.length / 2;
+
+    while (r.hasMore()) {
+      final long head = r.varint();
+      final int whoType = (int)(head & whoTypeMask);
+      final int flags = (int)(head >>> whoTypeBits);
+
+      if (whoType >= whoTypeFlags.length) {
+        throw AccessException.badACE("who type");
+      }
+
+      int who = -1;
+
+      if ((flags & aceHasWho) != 0) {
+        who = r.index(stringCount);
+      }
+
+      final long a = r.varint();
+
+      if ((flags & aceHasPrivs) != 0) {
+        r.skip(r.int32());
+      }
+
+      /* Inherited only if there is a path */
+      final boolean inherited = (flags & aceHasPath) != 0;
+
+      if (inherited) {
+        r.index(stringCount);
+      }
+
+      final boolean notWho = (flags & aceNotWho) != 0;
+
+      if (!whoTypeNamed[whoType]) {
+        /* "other" is matched like a named type with a null name */
+        if ((whoType != whoTypeOther) || ((who < 0) != notWho)) {
+          AclScanner.merge(unnamed, whoType * 4,
+                           a, allPrivsMask & ~a, inherited);
+          unnamedFound |= 1 << whoType;
+        }
+
+        continue;
+      }
+
+      int nflags = whoType;
+      if (notWho) {
+        nflags |= notWhoBit;
+      }
+      if (inherited) {
+        nflags |= inheritedBit;
+      }
+
+      addNamed(who, nflags, a);
+      namedFound |= 1 << whoType;
+    }
+
+    return true;
+  }
+
+  @Override
+  public PrivilegeSet findMergedPrivilege(final Access.AccessCb cb,
+                                          final String name,
+                                          final int whoType)
+          throws AccessException {
+    final int bit = 1 << whoType;
+
+    if (!whoTypeNamed[whoType]) {
+      if ((unnamedFound & bit) == 0) {
+        return null;
+      }
+
+      final int i = whoType * 4;
+
+      return PrivilegeSet.fromMasks(unnamed[i], unnamed[i + 1],
+                                    unnamed[i + 2], unnamed[i + 3]);
+    }
+
+    if ((namedFound & bit) == 0) {
+      return null;
+    }
+
+    final long[] m = merged;
+    m[0] = 0;
+    m[1] = 0;
+    m[2] = 0;
+    m[3] = 0;
+    boolean found = false;
+
+    for (int i = 0; i < namedCount; i++) {
+      final int flags = namedWho[i * 2 + 1];
+
+      if (((flags & typeMask) != whoType) || !whoMatch(cb, name, i, flags)) {
+        continue;
+      }
+
+      final long a = namedAllowed[i];
+
+      AclScanner.merge(m, 0, a, allPrivsMask & ~a,
+                       (flags & inheritedBit) != 0);
+      found = true;
+    }
+
+    if (!found) {
+      return null;
+    }
+
+    return PrivilegeSet.fromMasks(m[0], m[1], m[2], m[3]);
+  }
+
+  @Override
+  public boolean hasNamed(final int whoType) {
+    return (namedFound & (1 << whoType)) != 0;
+  }
+
+  /* As AceWho.whoMatch */
+  private boolean whoMatch(final Access.AccessCb cb,
+                           final String name,
+                           final int i,
+                           final int flags) throws AccessException {
+    final boolean notWho = (flags & notWhoBit) != 0;
+    final int who = namedWho[i * 2];
+
+    if ((name == null) && (who < 0)) {
+      return !notWho;
+    }
+
+    if ((name == null) || (who < 0)) {
+      return notWho;
+    }
+
+    return name.equals(aceWho(who, flags).getHref(cb)) != notWho;
+  }
+
+  private AceWho aceWho(final int who,
+                        final int flags) throws AccessException {
+    /* Two slots per string for notWho */
+    final int slot = who * 2 + (((flags & notWhoBit) != 0) ? 1 : 0);
+
+    if (aceWhos == null) {
+      aceWhos = new AceWho[strings.length];
+    }
+
+    AceWho res = aceWhos[slot];
+
+    if ((res == null) || (res.getWhoType() != (flags & typeMask))) {
+      res = AceWho.getAceWho(BinaryAcl.fromUtf8(bytes, strings[who * 2],
+                                                strings[who * 2 + 1]),
+                             flags & typeMask,
+                             (flags & notWhoBit) != 0);
+      aceWhos[slot] = res;
+    }
+
+    return res;
+  }
+
+  private void addNamed(final int who,
+                        final int flags,
+                        final long a) {
+    if (namedWho == null) {
+      namedWho = new int[4 * 2];
+      namedAllowed = new long[4];
+    } else if (namedAllowed.length == namedCount) {
+      final int[] w = new int[namedWho.length * 2];
+      System.arraycopy(namedWho, 0, w, 0, namedWho.length);
+      namedWho = w;
+
+      final long[] h = new long[namedAllowed.length * 2];
+      System.arraycopy(namedAllowed, 0, h, 0, namedAllowed.length);
+      namedAllowed = h;
+    }
+
+    namedWho[namedCount * 2] = who;
+    namedWho[namedCount * 2 + 1] = flags;
+    namedAllowed[namedCount] = a;
+    namedCount++;
+  }
+}
@@ -7,6 +7,7 @@ import org.bedework.util.misc.ToString;
 import org.bedework.util.misc.Util;
 
 import java.io.Serializable;
+import java.util.Arrays;
 
 /** Immutable object created as a result of evaluating access to an entity for
  * a principal
@@ -18,10 +19,14 @@ public class CurrentAccess implements Serializable,
   /** The Acl used to evaluate the access. We should not necessarily
    * make this available to the client.
    */
-  Acl acl;
+  volatile Acl acl;
 
+  /* For cached objects shared with every other entry for the same acl */
   char[] aclChars;
 
+  /* Set instead of aclChars if the acl was evaluated in binary form */
+  byte[] aclBytes;
+
   PrivilegeSet privileges = null;
 
   /** Was it succesful */
@@ -50,10 +55,27 @@ public class CurrentAccess implements Serializable,
   /** The Acl used to evaluate the access. We should not necessarily
    * make this available to the client.
    *
+   * <p>Evaluated access does not hold the decoded acl. It is found in the
+   * {@link DecodedAclCache} or decoded on the first call, so objects for the
+   * same acl share one decoded acl, which must not be modified.
+   *
    * @return acl
+   * @throws AccessException if the acl cannot be decoded
    */
-  public Acl getAcl() {
-    return acl;
+  public Acl getAcl() throws AccessException {
+    Acl a = acl;
+
+    if ((a == null) && ((aclChars != null) || (aclBytes != null))) {
+      if (aclChars != null) {
+        a = DecodedAclCache.decode(aclChars);
+      } else {
+        a = DecodedAclCache.decode(BinaryAcl.toChars(aclBytes));
+      }
+
+      acl = a;
+    }
+
+    return a;
   }
 
   /**  Allowed access for each privilege type
@@ -85,6 +107,12 @@ public class CurrentAccess implements Serializable,
       return res;
     }
 
+    res = compare(aclBytes, that.aclBytes);
+
+    if (res != 0) {
+      return res;
+    }
+
     res = Util.cmpObjval(privileges, that.privileges);
 
     if (res != 0) {
@@ -102,6 +130,10 @@ public class CurrentAccess implements Serializable,
       hc *= aclChars.hashCode();
     }
 
+    if (aclBytes != null) {
+      hc *= Arrays.hashCode(aclBytes);
+    }
+
     if (privileges != null) {
       hc *= privileges.hashCode();
     }
@@ -114,10 +146,35 @@ public class CurrentAccess implements Serializable,
     return compareTo((CurrentAccess)o) == 0;
   }
 
+  private static int compare(final byte[] thisone, final byte[] thatone) {
+    if (thisone == thatone) {
+      return 0;
+    }
+
+    if (thisone == null) {
+      return -1;
+    }
+
+    if (thatone == null) {
+      return 1;
+    }
+
+    return Arrays.compare(thisone, thatone);
+  }
+
   @Override
   public String toString() {
     final ToString ts = new ToString(this);
-    ts.append("acl", acl);
+    final Acl a = acl;
+
+    /* Don't decode just to log */
+    if (a != null) {
+      ts.append("acl", a);
+    } else if (aclChars != null) {
+      ts.append("aclChars", new String(aclChars));
+    } else if (aclBytes != null) {
+      ts.append("aclBytes", aclBytes.length);
+    }
 
     ts.append("accessAllowed", accessAllowed);
 
@@ -0,0 +1,333 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** A cache of decoded acls shared by all evaluations. The evaluated access
+ * cache holds a result per principal so a miss for a new principal would
+ * otherwise decode an acl which was decoded moments ago for someone else.
+ *
+ * <p>Acls are looked up by their fingerprint from
+ * {@link EncodedAcl#fingerprint(char[])} and the characters compared to
+ * confirm a hit. The decoded acl and its evaluation plan are built once and
+ * must be treated as immutable.
+ *
+ * <p>The cache also holds one copy of the characters of each acl which the
+ * evaluated access cache shares between all its entries for that acl. An
+ * acl may be in the cache without being decoded.
+ *
+ * <p>Decoded acls are held through soft references so the garbage collector
+ * may reclaim them when memory is short. The characters are held strongly
+ * so the evaluated access cache keeps sharing them when that happens, and
+ * the acl is decoded again when next needed. The number of entries is
+ * bounded and the least recently used are discarded when it grows past the
+ * limit.
+ *
+ * @author douglm
+ */
+public class DecodedAclCache {
+  /** Default maximum number of cached acls */
+  public final static int defaultMaxEntries = 10000;
+
+  /* When we trim we go down to this fraction of the maximum */
+  private final static float trimRatio = 0.9f;
+
+  private static volatile int maxEntries = defaultMaxEntries;
+
+  private static final ReentrantLock evictLock = new ReentrantLock();
+
+  private static final AtomicLong clock = new AtomicLong();
+
+  private static final class CacheEntry {
+    final long fingerprint;
+
+    /* Our own copy - shared with everyone using the acl */
+    final char[] aclChars;
+
+    /* Null if the acl has not been decoded */
+    volatile SoftReference<Acl> acl;
+
+    volatile long lastUsed;
+
+    CacheEntry(final long fingerprint,
+               final char[] aclChars,
+               final Acl acl,
+               final long lastUsed) {
+      this.fingerprint = fingerprint;
+      this.aclChars = aclChars;
+      if (acl != null) {
+        this.acl = new SoftReference<>(acl);
+      }
+      this.lastUsed = lastUsed;
+    }
+
+    /* Null if not decoded or reclaimed */
+    Acl getAcl() {
+      final SoftReference<Acl> ref = acl;
+
+      if (ref == null) {
+        return null;
+      }
+
+      return ref.get();
+    }
+  }
+
+  private static final ConcurrentHashMap<Long, CacheEntry> entries =
+          new ConcurrentHashMap<>();
+
+  private static final LongAdder gets = new LongAdder();
+  private static final LongAdder hits = new LongAdder();
+  private static final LongAdder evictions = new LongAdder();
+
+  private static Access.AccessStatsEntry numGets =
+    new Access.AccessStatsEntry("Decoded acl cache gets");
+
+  private static Access.AccessStatsEntry numHits =
+    new Access.AccessStatsEntry("Decoded acl cache hits");
+
+  private static Access.AccessStatsEntry numEntries =
+    new Access.AccessStatsEntry("Decoded acl cache entries");
+
+  private static Access.AccessStatsEntry numEvictions =
+    new Access.AccessStatsEntry("Decoded acl cache evicted entries");
+
+  private static Collection<Access.AccessStatsEntry> stats = new ArrayList<>();
+
+  static {
+    stats.add(numGets);
+    stats.add(numHits);
+    stats.add(numEntries);
+    stats.add(numEvictions);
+  }
+
+  /** Set the maximum number of cached acls. If the cache is currently
+   * larger it will be trimmed immediately.
+   *
+   * @param val maximum number of entries - must be positive
+   */
+  public static void setMaxEntries(final int val) {
+    if (val <= 0) {
+      throw new IllegalArgumentException("maxEntries must be positive");
+    }
+
+    maxEntries = val;
+
+    evictLock.lock();
+    try {
+      evict();
+    } finally {
+      evictLock.unlock();
+    }
+  }
+
+  /**
+   * @return maximum number of cached acls
+   */
+  public static int getMaxEntries() {
+    return maxEntries;
+  }
+
+  /** Discard all cached acls. Statistics are not reset.
+   */
+  public static void clear() {
+    evictLock.lock();
+    try {
+      entries.clear();
+    } finally {
+      evictLock.unlock();
+    }
+  }
+
+  /** Get the cache statistics
+   *
+   * @return Collection of stats
+   */
+  public static Collection<Access.AccessStatsEntry> getStatistics() {
+    numGets.count = gets.sum();
+    numHits.count = hits.sum();
+    numEntries.count = entries.size();
+    numEvictions.count = evictions.sum();
+
+    return stats;
+  }
+
+  /** Return the decoded acl, decoding and caching it if we do not already
+   * have it.
+   *
+   * @param aclChars encoded acl - not null
+   * @return decoded acl - must not be modified
+   * @throws AccessException if the acl is malformed
+   */
+  public static Acl decode(final char[] aclChars) throws AccessException {
+    return decode(aclChars, EncodedAcl.fingerprint(aclChars));
+  }
+
+  /** As above when the caller already has the fingerprint.
+   *
+   * @param aclChars     encoded acl - not null
+   * @param fingerprint  {@link EncodedAcl#fingerprint(char[])} of aclChars
+   * @return decoded acl - must not be modified
+   * @throws AccessException if the acl is malformed
+   */
+  public static Acl decode(final char[] aclChars,
+                           final long fingerprint) throws AccessException {
+    gets.increment();
+
+    final CacheEntry ent = entries.get(fingerprint);
+
+    if ((ent != null) && Arrays.equals(ent.aclChars, aclChars)) {
+      Acl acl = ent.getAcl();
+
+      if (acl != null) {
+        hits.increment();
+        touch(ent);
+
+        return acl;
+      }
+
+      /* Shared but not decoded, or reclaimed. Racing decodes are harmless */
+      acl = decodeShared(ent.aclChars);
+      ent.acl = new SoftReference<>(acl);
+      touch(ent);
+
+      return acl;
+    }
+
+    final char[] shared = aclChars.clone();
+    final Acl acl = decodeShared(shared);
+
+    put(new CacheEntry(fingerprint, shared, acl, clock.incrementAndGet()));
+
+    return acl;
+  }
+
+  private static Acl decodeShared(final char[] shared) throws AccessException {
+    final Acl acl = Acl.decode(shared);
+
+    /* Build the plan now so every user of the acl shares it */
+    acl.getPlan();
+
+    return acl;
+  }
+
+  /** Return the shared copy of the characters of an acl, adding it if we do
+   * not have it. The result must not be modified.
+   *
+   * @param acl          encoded acl - not null
+   * @param fingerprint  {@link EncodedAcl#fingerprint(CharSequence)} of acl
+   * @return shared characters equal to acl
+   */
+  static char[] share(final CharSequence acl,
+                      final long fingerprint) {
+    final CacheEntry ent = entries.get(fingerprint);
+
+    if ((ent != null) && sameChars(ent.aclChars, acl)) {
+      touch(ent);
+
+      return ent.aclChars;
+    }
+
+    final char[] shared = new char[acl.length()];
+
+    for (int i = 0; i < shared.length; i++) {
+      shared[i] = acl.charAt(i);
+    }
+
+    put(new CacheEntry(fingerprint, shared, null, clock.incrementAndGet()));
+
+    return shared;
+  }
+
+  private static void touch(final CacheEntry ent) {
+    final long now = clock.get();
+
+    /* Avoid writing shared memory if nothing changed */
+    if (ent.lastUsed != now) {
+      ent.lastUsed = now;
+    }
+  }
+
+  private static boolean sameChars(final char[] chars,
+                                   final CharSequence cs) {
+    if (chars.length != cs.length()) {
+      return false;
+    }
+
+    for (int i = 0; i < chars.length; i++) {
+      if (chars[i] != cs.charAt(i)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /* A later acl with the same fingerprint replaces an earlier one */
+  private static void put(final CacheEntry ent) {
+    entries.put(ent.fingerprint, ent);
+
+    if ((entries.size() > maxEntries) && evictLock.tryLock()) {
+      try {
+        evict();
+      } finally {
+        evictLock.unlock();
+      }
+    }
+  }
+
+  /* Called holding evictLock. Drop least recently used entries until we are
+   * back under the limit.
+   */
+  private static void evict() {
+    int size = entries.size();
+
+    if (size <= maxEntries) {
+      return;
+    }
+
+    final int target = (int)(maxEntries * trimRatio);
+    final List<Map.Entry<Long, CacheEntry>> candidates =
+            new ArrayList<>(entries.entrySet());
+
+    candidates.sort(Comparator.comparingLong(e -> e.getValue().lastUsed));
+
+    for (final Map.Entry<Long, CacheEntry> cand: candidates) {
+      if (size <= target) {
+        break;
+      }
+
+      if (entries.remove(cand.getKey(), cand.getValue())) {
+        size--;
+        evictions.increment();
+      }
+    }
+  }
+}
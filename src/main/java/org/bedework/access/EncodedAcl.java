@@ -35,6 +35,9 @@ public class EncodedAcl implements Serializable, Logged {
    */
   private char[] encoded;
 
+  /** Set instead of encoded when we are given a CharSequence */
+  private CharSequence encodedSeq;
+
   /** Current position in the acl */
   private int pos;
 
@@ -42,6 +45,13 @@ public class EncodedAcl implements Serializable, Logged {
    */
   private transient CharArrayWriter caw;
 
+  /* Fingerprint of the encoded value or of the last encoding if valid.
+   * fingerprinted is set after fingerprint so a reader which sees it set
+   * sees the fingerprint.
+   */
+  private transient long fingerprint;
+  private transient volatile boolean fingerprinted;
+
   private static final String[] encodedLengths;
 
   static {
@@ -58,15 +68,68 @@ public class EncodedAcl implements Serializable, Logged {
    */
   public void setEncoded(char[] val) {
     encoded = val;
+    encodedSeq = null;
+    fingerprinted = false;
     pos = 0;
   }
 
-  /** Get the encoded value
+  /** Set an encoded value held in a String, CharBuffer or other
+   * CharSequence. The characters are not copied so the value must not
+   * change while we are using it.
+   *
+   * @param val CharSequence encoded value
+   */
+  public void setEncoded(CharSequence val) {
+    encoded = null;
+    encodedSeq = val;
+    fingerprinted = false;
+    pos = 0;
+  }
+
+  /** Get the encoded value. If it was set as a CharSequence this is a copy.
    *
    * @return char[] encoded value
    */
   public char[] getEncoded() {
-    return encoded;
+    if (encodedSeq == null) {
+      return encoded;
+    }
+
+    return encodedSeq.toString().toCharArray();
+  }
+
+  /** Get the fingerprint of the encoded value, or of the value produced by
+   * the last call to {@link #getEncoding()} if that was later. It is
+   * computed at most once for each value, so a caller can keep it with the
+   * characters and use it as a cache key. Threads sharing a decoded acl
+   * may each compute it once but get the same value.
+   *
+   * @return fingerprint as {@link #fingerprint(char[])}
+   */
+  public long getFingerprint() {
+    if (!fingerprinted) {
+      if (encodedSeq != null) {
+        fingerprint = fingerprint(encodedSeq);
+      } else if (encoded != null) {
+        fingerprint = fingerprint(encoded);
+      } else {
+        fingerprint = emptyFingerprint;
+      }
+
+      fingerprinted = true;
+    }
+
+    return fingerprint;
+  }
+
+  /* For a value encoded elsewhere - see Acl.encode */
+  void setFingerprint(final long val) {
+    fingerprint = val;
+    fingerprinted = true;
+  }
+
+  void resetFingerprint() {
+    fingerprinted = false;
   }
 
   /** Provide segment of input for debugging and errors
@@ -79,7 +142,11 @@ public class EncodedAcl implements Serializable, Logged {
     sb.append("at ");
     sb.append(pos - 1);
     sb.append(" in '");
-    sb.append(encoded);
+    if (encodedSeq == null) {
+      sb.append(encoded);
+    } else {
+      sb.append(encodedSeq);
+    }
     sb.append("'");
 
     return sb.toString();
@@ -94,16 +161,15 @@ public class EncodedAcl implements Serializable, Logged {
    * @return char value
    */
   public char getChar() {
-    if ((encoded == null) || (pos == encoded.length)) {
-      if (debug()) {
-        debug("getChar=-1");
-      }
+    if (pos == encodedLength()) {
       return (char)-1;
     }
 
-    char c = encoded[pos];
-    if (debug()) {
-      debug("getChar='" + c + "'");
+    char c;
+    if (encodedSeq == null) {
+      c = encoded[pos];
+    } else {
+      c = encodedSeq.charAt(pos);
     }
     pos++;
 
@@ -129,10 +195,6 @@ public class EncodedAcl implements Serializable, Logged {
     }
 
     pos -= n;
-
-    if (debug()) {
-      debug("pos back to " + pos);
-    }
   }
 
   /** Get current position
@@ -170,10 +232,7 @@ public class EncodedAcl implements Serializable, Logged {
    * @return int number of chars remaining
    */
   public int remaining() {
-    if (encoded == null) {
-      return 0;
-    }
-    return encoded.length - pos;
+    return encodedLength() - pos;
   }
 
   /** Test for more
@@ -189,7 +248,7 @@ public class EncodedAcl implements Serializable, Logged {
    * @return boolean true for no more
    */
   public boolean empty() {
-    return (encoded == null) || (encoded.length == 0);
+    return encodedLength() == 0;
   }
 
   /** Return the value of a blank terminated length. On success current pos
@@ -233,11 +292,11 @@ public class EncodedAcl implements Serializable, Logged {
     back();
     int len = getLength();
 
-    if ((encoded.length - pos) < len) {
+    if ((encodedLength() - pos) < len) {
       throw AccessException.badACLLength();
     }
 
-    String s = new String(encoded, pos, len);
+    String s = substring(pos, len);
     pos += len;
 
     return s;
@@ -264,7 +323,96 @@ public class EncodedAcl implements Serializable, Logged {
    * @throws AccessException
    */
   public String getString(int begin) throws AccessException {
-    return new String(encoded, begin, pos - begin);
+    return substring(begin, pos - begin);
+  }
+
+  /* Character at index regardless of the current position */
+  char charAt(final int index) {
+    if (encodedSeq == null) {
+      return encoded[index];
+    }
+
+    return encodedSeq.charAt(index);
+  }
+
+  private int encodedLength() {
+    if (encodedSeq != null) {
+      return encodedSeq.length();
+    }
+
+    if (encoded == null) {
+      return 0;
+    }
+
+    return encoded.length;
+  }
+
+  private String substring(final int begin,
+                           final int len) {
+    if (encodedSeq == null) {
+      return new String(encoded, begin, len);
+    }
+
+    return encodedSeq.subSequence(begin, begin + len).toString();
+  }
+
+  /* ====================================================================
+   *                 Fingerprints
+   * ==================================================================== */
+
+  private static final long fnvOffset = 0xcbf29ce484222325L;
+  private static final long fnvPrime = 0x100000001b3L;
+
+  private static final long emptyFingerprint = mix(fnvOffset);
+
+  /** A 64 bit fingerprint of an encoded acl. This is FNV-1a over the
+   * characters, two bytes each, with a final mix so that every bit depends
+   * on every character. It does not change between releases or JVMs so
+   * may be stored.
+   *
+   * @param acl encoded acl
+   * @return fingerprint
+   */
+  public static long fingerprint(final char[] acl) {
+    long h = fnvOffset;
+
+    for (final char c: acl) {
+      h = (h ^ (c & 0xff)) * fnvPrime;
+      h = (h ^ (c >>> 8)) * fnvPrime;
+    }
+
+    return mix(h);
+  }
+
+  /** As above for an acl in any CharSequence. The result is the same as
+   * for the same characters in a char[].
+   *
+   * @param acl encoded acl
+   * @return fingerprint
+   */
+  public static long fingerprint(final CharSequence acl) {
+    long h = fnvOffset;
+    final int len = acl.length();
+
+    for (int i = 0; i < len; i++) {
+      final char c = acl.charAt(i);
+
+      h = (h ^ (c & 0xff)) * fnvPrime;
+      h = (h ^ (c >>> 8)) * fnvPrime;
+    }
+
+    return mix(h);
+  }
+
+  /* The murmur3 64 bit finalizer */
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+
+    return h;
   }
 
   /* ====================================================================
@@ -276,6 +424,7 @@ public class EncodedAcl implements Serializable, Logged {
    */
   public void startEncoding() {
     caw = new CharArrayWriter();
+    fingerprinted = false;
   }
 
   /** Encode a blank terminated 0 prefixed length.
@@ -395,9 +544,14 @@ public class EncodedAcl implements Serializable, Logged {
     char[] enc = caw.toCharArray();
     caw = null;
     if ((enc == null) || (enc.length == 0)) {
+      fingerprint = emptyFingerprint;
+      fingerprinted = true;
       return null;
     }
 
+    fingerprint = fingerprint(enc);
+    fingerprinted = true;
+
     return enc;
   }
 
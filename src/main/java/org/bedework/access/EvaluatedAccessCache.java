@@ -21,13 +21,28 @@ package org.bedework.access;
 import org.bedework.util.logging.BwLogger;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
-import static org.bedework.access.Acl.decode;
 import static org.bedework.access.Acl.evaluations;
 import static org.bedework.access.Acl.privSets;
 import static org.bedework.access.Acl.usePool;
@@ -35,38 +50,301 @@ import static org.bedework.access.PrivilegeDefs.allowed;
 import static org.bedework.access.PrivilegeDefs.allowedInherited;
 import static org.bedework.access.PrivilegeDefs.privReadAcl;
 import static org.bedework.access.PrivilegeDefs.privWriteAcl;
+import static org.bedework.access.WhoDefs.whoTypeNamed;
 
-/** This provides a cache of evaluated CurrentAccess objects. Rather than create
- * a composite key, which itself involves creating a new object per search, we
- * instead create a hierarchical set of tables, each indexed by an element of the
- * key. These levels are: <ul>
+/** This provides a cache of evaluated CurrentAccess objects. The cache is a
+ * single table indexed by a composite key made up of: <ul>
  * <li>owner href: the owner of the entity</li>
  * <li>accessor href: who's trying to get access</li>
- * <li>desired access</li>
- * <li>max access: filters the allowed access</li>
  * <li>acl: a string representation of the acl</li>
+ * </ul>
+ *
+ * <p>The cached object holds the full set of privileges the accessor has
+ * before any filter is applied. The desired access and any filter (maximum
+ * access) are applied to that on each lookup, which is cheap compared to an
+ * evaluation, so a check for read, a check for read-write and a check for any
+ * access all share one entry.
+ *
+ * <p>The key computes its hash once when it is created so a lookup is a
+ * single probe of the table. Compared with a hierarchy of tables, one per key
+ * element, this saves a map per partially filled level.
+ *
+ * <p>The table is a concurrent map so there is no global lock. Reads
+ * never block and counters are striped so they do not become a point of
+ * contention either.
+ *
+ * <p>The cache is bounded by a maximum number of entries. Each entry
+ * carries a timestamp refreshed on every get and put. When the cache grows
+ * past its limit a single thread trims it back to below the limit, discarding
+ * the least recently used entries. Other threads never wait for the trim.
+ *
+ * <p>Recency costs O(1) on each get and put, a write of the timestamp. The
+ * trim itself copies and sorts the table, O(n log n), but as it goes down to
+ * a fraction of the limit it runs at most once every (1 - trimRatio) * n
+ * puts, so the amortized cost per put is O(log n). This is deliberate - an
+ * access ordered list would need a lock on every get.
  *
  * @author douglm
  *
  */
 public class EvaluatedAccessCache implements Serializable {
-  private final static Object synch = new Object();
+  /** Default maximum number of cached CurrentAccess objects */
+  public final static int defaultMaxEntries = 100000;
+
+  /* When we trim we go down to this fraction of the maximum so that we are not
+   * trimming on every put.
+   */
+  private final static float trimRatio = 0.9f;
+
+  private static volatile int maxEntries = defaultMaxEntries;
+
+  /* Batches smaller than this are not worth handing to an executor */
+  private final static int minChunkSize = 64;
+
+  private static final ReentrantLock evictLock = new ReentrantLock();
+
+  /* Advances on every put. Reading it is cheap so a get costs no more than a
+   * volatile read and, sometimes, a write to the entry it found.
+   */
+  private static final AtomicLong clock = new AtomicLong();
+
+  /* Scope of keys for acls identified by an entity id and a long version.
+   * Never equal to a String version even if the characters are the same.
+   */
+  private static final class EntityScope {
+    private final String entityId;
+
+    EntityScope(final String entityId) {
+      this.entityId = entityId;
+    }
+
+    @Override
+    public int hashCode() {
+      return entityId.hashCode();
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      return (o instanceof EntityScope) &&
+              entityId.equals(((EntityScope)o).entityId);
+    }
+  }
+
+  /** The composite key. Keys in the table hold the acl as a copy shared,
+   * through {@link DecodedAclCache}, with every other entry for the same acl
+   * and with the CurrentAccess objects, or as a String. A key used only to
+   * probe the table may hold any CharSequence, for example a view of a
+   * buffer, so that a hit needs no copy of the acl. The acl is hashed by its
+   * 64 bit fingerprint, which a caller may already have, and the characters
+   * are only compared to confirm a hit.
+   */
+  static final class AccessKey {
+    private final String ownerHref;
+    private final String accessorHref;
+    private final CharSequence acl;
+
+    /* The shared copy of the acl wrapped by acl in a table key */
+    private final char[] aclChars;
+
+    /* Identify the acl if acl is null - the id is only unique in scope.
+     * The scope is an AclDictionary with the acl id, an EntityScope with the
+     * long version or a String version, which is hashed as the scope, with
+     * an id of 0. If acl is not null the id is its fingerprint.
+     */
+    private final Object aclScope;
+    private final long aclId;
+
+    private final int hash;
+
+    AccessKey(final String ownerHref,
+              final String accessorHref,
+              final CharSequence acl) {
+      this(ownerHref, accessorHref, acl,
+           (acl == null) ? 0 : EncodedAcl.fingerprint(acl));
+    }
+
+    AccessKey(final String ownerHref,
+              final String accessorHref,
+              final CharSequence acl,
+              final long aclFingerprint) {
+      this.ownerHref = ownerHref;
+      this.accessorHref = accessorHref;
+      this.acl = acl;
+      aclChars = null;
+      aclScope = null;
+      aclId = aclFingerprint;
+      hash = hash(ownerHref, accessorHref, null, aclFingerprint);
+    }
+
+    /* A key for the table holding a shared copy of the acl */
+    AccessKey(final String ownerHref,
+              final String accessorHref,
+              final long aclFingerprint,
+              final char[] aclChars) {
+      this.ownerHref = ownerHref;
+      this.accessorHref = accessorHref;
+      acl = CharBuffer.wrap(aclChars);
+      this.aclChars = aclChars;
+      aclScope = null;
+      aclId = aclFingerprint;
+      hash = hash(ownerHref, accessorHref, null, aclFingerprint);
+    }
+
+    AccessKey(final String ownerHref,
+              final String accessorHref,
+              final Object aclScope,
+              final long aclId) {
+      this.ownerHref = ownerHref;
+      this.accessorHref = accessorHref;
+      acl = null;
+      aclChars = null;
+      this.aclScope = aclScope;
+      this.aclId = aclId;
+      hash = hash(ownerHref, accessorHref, aclScope, aclId);
+    }
+
+    /* A key for an acl identified by a String version. The version is the
+     * scope so that it is hashed - passed as the acl it would be taken to
+     * be the acl with a fingerprint of 0 and every version would hash alike.
+     */
+    static AccessKey forVersion(final String ownerHref,
+                                final String accessorHref,
+                                final String aclVersion) {
+      return new AccessKey(ownerHref, accessorHref, (Object)aclVersion, 0);
+    }
+
+    /* A key for the table with the same value as a probe and the acl held
+     * as a String. Used for acls in binary form, which are not shared.
+     */
+    AccessKey(final AccessKey probe) {
+      ownerHref = probe.ownerHref;
+      accessorHref = probe.accessorHref;
+      if (probe.acl == null) {
+        acl = null;
+      } else {
+        acl = probe.acl.toString();
+      }
+      aclChars = null;
+      aclScope = probe.aclScope;
+      aclId = probe.aclId;
+      hash = probe.hash;
+    }
+
+    AccessKey forTable() {
+      if ((acl == null) || (aclChars != null) || (acl instanceof String)) {
+        return this;
+      }
+
+      return new AccessKey(ownerHref, accessorHref, aclId,
+                           DecodedAclCache.share(acl, aclId));
+    }
+
+    /* The shared copy of the acl */
+    char[] sharedChars() {
+      if (aclChars != null) {
+        return aclChars;
+      }
+
+      return DecodedAclCache.share(acl, aclId);
+    }
+
+    private static int hash(final String ownerHref,
+                            final String accessorHref,
+                            final Object aclScope,
+                            final long aclId) {
+      int h = Objects.hashCode(ownerHref);
+      h = 31 * h + Objects.hashCode(accessorHref);
+      h = 31 * h + Objects.hashCode(aclScope);
+      return 31 * h + Long.hashCode(aclId);
+    }
+
+    private static boolean charsEqual(final CharSequence a,
+                                      final CharSequence b) {
+      if (a == b) {
+        return true;
+      }
+
+      if ((a == null) || (b == null)) {
+        return false;
+      }
+
+      if (a instanceof String) {
+        return ((String)a).contentEquals(b);
+      }
+
+      if (b instanceof String) {
+        return ((String)b).contentEquals(a);
+      }
+
+      final int len = a.length();
+
+      if (len != b.length()) {
+        return false;
+      }
+
+      for (int i = 0; i < len; i++) {
+        if (a.charAt(i) != b.charAt(i)) {
+          return false;
+        }
+      }
+
+      return true;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) {
+        return true;
+      }
 
-  private static class AccessMap extends HashMap<String, CurrentAccess>{}
+      if (!(o instanceof AccessKey)) {
+        return false;
+      }
+
+      final AccessKey that = (AccessKey)o;
+
+      return (hash == that.hash) &&
+              (aclId == that.aclId) &&
+              Objects.equals(aclScope, that.aclScope) &&
+              charsEqual(acl, that.acl) &&
+              Objects.equals(accessorHref, that.accessorHref) &&
+              Objects.equals(ownerHref, that.ownerHref);
+    }
+  }
+
+  private static final class CacheEntry {
+    final CurrentAccess ca;
 
-  private static class PrivMap extends HashMap<PrivilegeSet, AccessMap>{}
+    volatile long lastUsed;
 
-  private static class PrivSetMap extends HashMap<PrivilegeSet, PrivMap>{}
+    CacheEntry(final CurrentAccess ca,
+               final long lastUsed) {
+      this.ca = ca;
+      this.lastUsed = lastUsed;
+    }
+  }
 
-  private static class AccessorsMap extends HashMap<String, PrivSetMap>{}
+  private static final ConcurrentHashMap<AccessKey, CacheEntry> entries =
+          new ConcurrentHashMap<>();
 
-  private static Map<String, AccessorsMap> ownerHrefs = new HashMap<>();
+  /* Evaluations in progress. Concurrent misses on the same key wait for the
+   * first rather than all evaluating it.
+   */
+  private static final ConcurrentHashMap<AccessKey,
+          CompletableFuture<CurrentAccess>> inFlight =
+          new ConcurrentHashMap<>();
 
-  /* Back end of the queue is the most recently referenced. */
-  private static LinkedList<String> accessorQueue = new LinkedList<>();
+  private static final AtomicInteger cacheSize = new AtomicInteger();
 
-  private static Access.AccessStatsEntry accessorQueueLen =
-    new Access.AccessStatsEntry("Access cache accessor queue len");
+  private static final LongAdder gets = new LongAdder();
+  private static final LongAdder hits = new LongAdder();
+  private static final LongAdder evictions = new LongAdder();
+  private static final LongAdder coalesced = new LongAdder();
 
   private static Access.AccessStatsEntry numGets =
     new Access.AccessStatsEntry("Access cache gets");
@@ -74,187 +352,193 @@ public class EvaluatedAccessCache implements Serializable {
   private static Access.AccessStatsEntry numHits =
     new Access.AccessStatsEntry("Access cache hits");
 
-  private static Access.AccessStatsEntry numAclTables =
-    new Access.AccessStatsEntry("Access cache ACL tables");
+  private static Access.AccessStatsEntry numMisses =
+    new Access.AccessStatsEntry("Access cache misses");
 
   private static Access.AccessStatsEntry numEntries =
     new Access.AccessStatsEntry("Access cache entries");
 
+  private static Access.AccessStatsEntry numEvictions =
+    new Access.AccessStatsEntry("Access cache evicted entries");
+
+  private static Access.AccessStatsEntry numCoalesced =
+    new Access.AccessStatsEntry("Access cache coalesced misses");
+
   private static Collection<Access.AccessStatsEntry> stats = new ArrayList<>();
 
   private static BwLogger logger = 
           new BwLogger().setLoggedClass(EvaluatedAccessCache.class);
 
   static {
-    stats.add(accessorQueueLen);
     stats.add(numGets);
     stats.add(numHits);
-    stats.add(numAclTables);
+    stats.add(numMisses);
     stats.add(numEntries);
+    stats.add(numEvictions);
+    stats.add(numCoalesced);
+  }
+
+  /** Set the maximum number of cached entries. If the cache is currently
+   * larger it will be trimmed immediately.
+   *
+   * @param val maximum number of entries - must be positive
+   */
+  public static void setMaxEntries(final int val) {
+    if (val <= 0) {
+      throw new IllegalArgumentException("maxEntries must be positive");
+    }
+
+    maxEntries = val;
+
+    evictLock.lock();
+    try {
+      evict();
+    } finally {
+      evictLock.unlock();
+    }
   }
 
   /**
+   * @return maximum number of cached entries
+   */
+  public static int getMaxEntries() {
+    return maxEntries;
+  }
+
+  /** Discard all cached entries. Statistics are not reset.
+   */
+  public static void clear() {
+    evictLock.lock();
+    try {
+      /* Removed one at a time so that concurrent puts are still counted */
+      for (final AccessKey key: entries.keySet()) {
+        if (entries.remove(key) != null) {
+          cacheSize.decrementAndGet();
+        }
+      }
+    } finally {
+      evictLock.unlock();
+    }
+  }
+
+  /** Get the unfiltered access for the accessor. The result is not
+   * specific to any desired access so only the privileges are meaningful.
+   *
    * @param ownerHref     href
    * @param accessorHref  href
-   * @param desiredPriv   priv set
-   * @param maxAccess     max allowed
    * @param acl           String acl
    * @return CurrentAccess or null
    */
   public static CurrentAccess get(final String ownerHref,
                                   final String accessorHref,
-                                  final PrivilegeSet desiredPriv,
-                                  final PrivilegeSet maxAccess,
                                   final String acl) {
-    numGets.count++;
-
-    synchronized (synch) {
-      AccessorsMap accessors = ownerHrefs.get(ownerHref);
-
-      if (accessors == null) {
-        return null;
-      }
-
-      /* ===================== desired priv ================== */
-
-      PrivSetMap desiredPrivs = accessors.get(accessorHref);
-
-      if (desiredPrivs == null) {
-        return null;
-      }
-
-      accessorQueue.remove(accessorHref);
-      accessorQueue.add(accessorHref);
-
-      /* ===================== max priv ================== */
-
-      PrivMap maxPrivs = desiredPrivs.get(desiredPriv);
-
-      if (maxPrivs == null) {
-        return null;
-      }
-
-      /* ===================== acl ================== */
-
-      AccessMap acls = maxPrivs.get(maxAccess);
-
-      if (acls == null) {
-        return null;
-      }
-
-      /* ==================== finally access =============== */
-
-      CurrentAccess ca = acls.get(acl);
-
-      if (ca != null) {
-        numHits.count++;
-      }
-
-      return ca;
-    } // synch
+    return get(new AccessKey(ownerHref, accessorHref, acl));
   }
 
   /**
    * @param ownerHref     href
    * @param accessorHref  href
-   * @param desiredPriv   priv set
-   * @param maxAccess     max allowed
    * @param acl           String acl
-   * @param ca            current access object
+   * @param ca            current access object holding unfiltered
+   *                      privileges
    */
   public static void put(final String ownerHref,
                          final String accessorHref,
-                         final PrivilegeSet desiredPriv,
-                         final PrivilegeSet maxAccess,
                          final String acl,
                          final CurrentAccess ca) {
-    boolean found = true;
+    put(new AccessKey(ownerHref, accessorHref, acl), ca);
+  }
 
+  /** Get the cache statistics
+   *
+   * @return Collection of stats
+   */
+  public static Collection<Access.AccessStatsEntry> getStatistics() {
+    numGets.count = gets.sum();
+    numHits.count = hits.sum();
+    numMisses.count = numGets.count - numHits.count;
+    numEntries.count = cacheSize.get();
+    numEvictions.count = evictions.sum();
+    numCoalesced.count = coalesced.sum();
 
-    synchronized (synch) {
-      AccessorsMap accessors = ownerHrefs.get(ownerHref);
+    return stats;
+  }
 
-      if (accessors == null) {
-        accessors = new AccessorsMap();
-        ownerHrefs.put(ownerHref, accessors);
-        found = false;
-      }
+  private static CurrentAccess get(final AccessKey key) {
+    gets.increment();
 
-      accessorQueue.remove(accessorHref);
-      accessorQueue.add(accessorHref);
+    final CacheEntry ent = entries.get(key);
 
-      /* ===================== desired priv ================== */
+    if (ent == null) {
+      return null;
+    }
 
-      PrivSetMap desiredPrivs = null;
-      if (found) {
-        // Try a search
-        desiredPrivs = accessors.get(accessorHref);
-      }
+    hits.increment();
 
-      if (desiredPrivs == null) {
-        desiredPrivs = new PrivSetMap();
-        accessors.put(accessorHref, desiredPrivs);
-        found = false;
-      }
+    final long now = clock.get();
 
-      /* ===================== max priv ================== */
+    /* Avoid writing shared memory if nothing changed */
+    if (ent.lastUsed != now) {
+      ent.lastUsed = now;
+    }
 
-      PrivMap maxPrivs = null;
-      if (found) {
-        // Try a search
-        maxPrivs = desiredPrivs.get(desiredPriv);
-      }
+    return ent.ca;
+  }
 
-      if (maxPrivs == null) {
-        maxPrivs = new PrivMap();
-        desiredPrivs.put(desiredPriv, maxPrivs);
-        found = false;
+  private static void put(final AccessKey key,
+                          final CurrentAccess ca) {
+    final CacheEntry ent = new CacheEntry(ca, clock.incrementAndGet());
+    final CacheEntry tent = entries.putIfAbsent(key.forTable(), ent);
+
+    if (tent != null) {
+      // Let's see if it's the same - it ought to be
+      if (!tent.ca.equals(ca)) {
+        // That's bad.
+        logger.error("Current access in table does not match, " +
+                             "table:" + tent.ca +
+                             " new version " + ca);
       }
 
-      /* ===================== acl ================== */
+      return;
+    }
 
-      AccessMap acls = null;
-      if (found) {
-        // Try a search
-        acls = maxPrivs.get(maxAccess);
+    if ((cacheSize.incrementAndGet() > maxEntries) &&
+            evictLock.tryLock()) {
+      try {
+        evict();
+      } finally {
+        evictLock.unlock();
       }
+    }
+  }
 
-      if (acls == null) {
-        acls = new AccessMap();
-        maxPrivs.put(maxAccess, acls);
-        numAclTables.count++;
-        found = false;
-      }
+  /* Called holding evictLock. Drop least recently used entries until we are
+   * back under the limit.
+   */
+  private static void evict() {
+    if (cacheSize.get() <= maxEntries) {
+      return;
+    }
 
-      /* ==================== finally store =============== */
+    final int target = (int)(maxEntries * trimRatio);
+    final List<Map.Entry<AccessKey, CacheEntry>> candidates =
+            new ArrayList<>(entries.entrySet());
 
-      if (found) {
-        // Let's see if it's the same - it ought to be
+    candidates.sort(Comparator.comparingLong(e -> e.getValue().lastUsed));
 
-        CurrentAccess tca = acls.get(acl);
-        if (tca != null) {
-          if (!tca.equals(ca)) {
-            // That's bad.
-            logger.error("Current access in table does not match, " +
-                                  "table:" + tca +
-                                  " new version " + ca);
-          }
-        }
+    /* The size is counted down per removal - puts may be adding entries
+     * while we trim.
+     */
+    for (Map.Entry<AccessKey, CacheEntry> cand: candidates) {
+      if (cacheSize.get() <= target) {
+        break;
       }
 
-      numEntries.count++;
-      acls.put(acl, ca);
-    } // synch
-  }
-
-  /** Get the cache statistics
-   *
-   * @return Collection of stats
-   */
-  public static Collection<Access.AccessStatsEntry> getStatistics() {
-    accessorQueueLen.count = accessorQueue.size();
-
-    return stats;
+      if (entries.remove(cand.getKey(), cand.getValue())) {
+        cacheSize.decrementAndGet();
+        evictions.increment();
+      }
+    }
   }
 
   /** Evaluating an ACL
@@ -301,39 +585,928 @@ public class EvaluatedAccessCache implements Serializable {
                                              final char[] aclChars,
                                              final PrivilegeSet filter)
           throws AccessException {
-    String aclString = new String(aclChars);
-    PrivilegeSet howPriv = PrivilegeSet.makePrivilegeSet(how);
+    return forRequest(getOrEvaluate(cb, who, owner,
+                                    owner.getPrincipalRef(),
+                                    who.getPrincipalRef(),
+                                    aclChars),
+                      Privilege.indexMask(how), filter);
+  }
+
+  /** As above for an acl whose fingerprint the caller keeps with it, for
+   * example from {@link Acl#encode()} followed by
+   * {@link EncodedAcl#getFingerprint()}, or stored with the acl. The
+   * fingerprint is used in place of hashing the acl and the characters are
+   * only compared to confirm a hit.
+   *
+   * @param cb              callback
+   * @param who             principal trying to get access
+   * @param owner           owner of the entity
+   * @param how             desired access
+   * @param aclChars        encoded acl
+   * @param aclFingerprint  {@link EncodedAcl#fingerprint(char[])} of aclChars
+   * @param filter          if not null specifies maximum access
+   * @return CurrentAccess   access + allowed/disallowed
+   * @throws AccessException on error
+   */
+  public static CurrentAccess evaluateAccessByFingerprint(
+          final Access.AccessCb cb,
+          final AccessPrincipal who,
+          final AccessPrincipal owner,
+          final Privilege[] how,
+          final char[] aclChars,
+          final long aclFingerprint,
+          final PrivilegeSet filter)
+          throws AccessException {
+    return forRequest(getOrEvaluate(cb, who, owner,
+                                    new AccessKey(owner.getPrincipalRef(),
+                                                  who.getPrincipalRef(),
+                                                  CharBuffer.wrap(aclChars),
+                                                  aclFingerprint),
+                                    aclChars),
+                      Privilege.indexMask(how), filter);
+  }
+
+  /** As above for an acl held in any CharSequence, for example a String or
+   * a CharBuffer. If the result is cached the acl is not copied.
+   *
+   * @param cb        callback
+   * @param who       principal trying to get access
+   * @param owner     owner of the entity
+   * @param how       desired access
+   * @param acl       encoded acl
+   * @param filter    if not null specifies maximum access
+   * @return CurrentAccess   access + allowed/disallowed
+   * @throws AccessException on error
+   */
+  public static CurrentAccess evaluateAccess(final Access.AccessCb cb,
+                                             final AccessPrincipal who,
+                                             final AccessPrincipal owner,
+                                             final Privilege[] how,
+                                             final CharSequence acl,
+                                             final PrivilegeSet filter)
+          throws AccessException {
+    return forRequest(getOrEvaluate(cb, who, owner,
+                                    owner.getPrincipalRef(),
+                                    who.getPrincipalRef(),
+                                    acl, null),
+                      Privilege.indexMask(how), filter);
+  }
+
+  /** As above for an acl held as ASCII in a buffer. The position and limit
+   * of the buffer are not used or changed. If the result is cached the acl
+   * is not copied.
+   *
+   * @param cb        callback
+   * @param who       principal trying to get access
+   * @param owner     owner of the entity
+   * @param how       desired access
+   * @param acl       buffer holding the encoded acl
+   * @param offset    of the acl in the buffer
+   * @param length    of the acl
+   * @param filter    if not null specifies maximum access
+   * @return CurrentAccess   access + allowed/disallowed
+   * @throws AccessException on error
+   */
+  public static CurrentAccess evaluateAccess(final Access.AccessCb cb,
+                                             final AccessPrincipal who,
+                                             final AccessPrincipal owner,
+                                             final Privilege[] how,
+                                             final ByteBuffer acl,
+                                             final int offset,
+                                             final int length,
+                                             final PrivilegeSet filter)
+          throws AccessException {
+    return evaluateAccess(cb, who, owner, how,
+                          new AsciiChars(acl, offset, length), filter);
+  }
+
+  /** As above for an acl in either form accepted by
+   * {@link BinaryAcl#toChars(byte[])}. If the result is cached the acl is not
+   * copied.
+   *
+   * @param cb        callback
+   * @param who       principal trying to get access
+   * @param owner     owner of the entity
+   * @param how       desired access
+   * @param acl       acl from {@link BinaryAcl#fromChars(char[])}
+   * @param filter    if not null specifies maximum access
+   * @return CurrentAccess   access + allowed/disallowed
+   * @throws AccessException on error
+   */
+  public static CurrentAccess evaluateAccess(final Access.AccessCb cb,
+                                             final AccessPrincipal who,
+                                             final AccessPrincipal owner,
+                                             final Privilege[] how,
+                                             final byte[] acl,
+                                             final PrivilegeSet filter)
+          throws AccessException {
+    if (!BinaryAcl.isBinary(acl)) {
+      return evaluateAccess(cb, who, owner, how, BinaryAcl.toChars(acl),
+                            filter);
+    }
+
+    /* Each byte is a char of the key. Keys for the char form never start
+     * with the magic byte.
+     */
+    final AccessKey probe =
+            new AccessKey(owner.getPrincipalRef(), who.getPrincipalRef(),
+                          new AsciiChars(ByteBuffer.wrap(acl), 0, acl.length));
+
+    CurrentAccess ca = get(probe);
+
+    if (ca == null) {
+      ca = evaluateOnce(new AccessKey(probe),
+                        () -> evaluateAccessInt(cb, who, owner, acl));
+    }
+
+    return forRequest(ca, Privilege.indexMask(how), filter);
+  }
+
+  /** As above for an acl held in a dictionary. The result is cached against
+   * the id so on a hit the acl is not looked at.
+   *
+   * @param cb        callback
+   * @param who       principal trying to get access
+   * @param owner     owner of the entity
+   * @param how       desired access
+   * @param acls      dictionary holding the acl
+   * @param aclId     id of the acl in the dictionary
+   * @param filter    if not null specifies maximum access
+   * @return CurrentAccess   access + allowed/disallowed
+   * @throws AccessException on error or an unknown id
+   */
+  public static CurrentAccess evaluateAccess(final Access.AccessCb cb,
+                                             final AccessPrincipal who,
+                                             final AccessPrincipal owner,
+                                             final Privilege[] how,
+                                             final AclDictionary acls,
+                                             final int aclId,
+                                             final PrivilegeSet filter)
+          throws AccessException {
+    final AccessKey key = new AccessKey(owner.getPrincipalRef(),
+                                        who.getPrincipalRef(),
+                                        acls, aclId);
+
+    CurrentAccess ca = get(key);
+
+    if (ca == null) {
+      final char[] aclChars = acls.getAcl(aclId);
+
+      ca = evaluateOnce(key, () -> evaluateAccessInt(cb, who, owner,
+                                                     aclChars));
+    }
+
+    return forRequest(ca, Privilege.indexMask(how), filter);
+  }
+
+  /** As above but the result is cached against a version key supplied by
+   * the caller, for example an entity id and an acl version column, instead
+   * of the acl. The acl is only looked at on a miss so every acl with a
+   * given entity id and version must be the same.
+   *
+   * @param cb          callback
+   * @param who         principal trying to get access
+   * @param owner       owner of the entity
+   * @param how         desired access
+   * @param entityId    identifies the entity - not null
+   * @param aclVersion  identifies the acl of the entity
+   * @param aclChars    encoded acl
+   * @param filter      if not null specifies maximum access
+   * @return CurrentAccess   access + allowed/disallowed
+   * @throws AccessException on error
+   */
+  public static CurrentAccess evaluateAccessByVersion(
+          final Access.AccessCb cb,
+          final AccessPrincipal who,
+          final AccessPrincipal owner,
+          final Privilege[] how,
+          final String entityId,
+          final long aclVersion,
+          final char[] aclChars,
+          final PrivilegeSet filter)
+          throws AccessException {
+    return evaluateAccess(cb, who, owner, how,
+                          new AccessKey(owner.getPrincipalRef(),
+                                        who.getPrincipalRef(),
+                                        new EntityScope(entityId),
+                                        aclVersion),
+                          aclChars, filter);
+  }
+
+  /** As above for a String version key, for example an entity id and acl
+   * etag. It should be short as it is hashed on every call.
+   *
+   * @param cb          callback
+   * @param who         principal trying to get access
+   * @param owner       owner of the entity
+   * @param how         desired access
+   * @param aclVersion  identifies the acl - if null the acl is the key
+   * @param aclChars    encoded acl
+   * @param filter      if not null specifies maximum access
+   * @return CurrentAccess   access + allowed/disallowed
+   * @throws AccessException on error
+   */
+  public static CurrentAccess evaluateAccessByVersion(
+          final Access.AccessCb cb,
+          final AccessPrincipal who,
+          final AccessPrincipal owner,
+          final Privilege[] how,
+          final String aclVersion,
+          final char[] aclChars,
+          final PrivilegeSet filter)
+          throws AccessException {
+    if (aclVersion == null) {
+      return evaluateAccess(cb, who, owner, how, aclChars, filter);
+    }
+
+    return evaluateAccess(cb, who, owner, how,
+                          AccessKey.forVersion(owner.getPrincipalRef(),
+                                               who.getPrincipalRef(),
+                                               aclVersion),
+                          aclChars, filter);
+  }
+
+  private static CurrentAccess evaluateAccess(final Access.AccessCb cb,
+                                              final AccessPrincipal who,
+                                              final AccessPrincipal owner,
+                                              final Privilege[] how,
+                                              final AccessKey key,
+                                              final char[] aclChars,
+                                              final PrivilegeSet filter)
+          throws AccessException {
+    CurrentAccess ca = get(key);
+
+    if (ca == null) {
+      final char[] shared =
+              DecodedAclCache.share(CharBuffer.wrap(aclChars),
+                                    EncodedAcl.fingerprint(aclChars));
+
+      ca = evaluateOnce(key, () -> evaluateAccessInt(cb, who, owner,
+                                                     shared));
+    }
+
+    return forRequest(ca, Privilege.indexMask(how), filter);
+  }
+
+  /** Evaluate access for one principal to a number of entities with the
+   * same owner. The desired access, the principal and the owner are
+   * prepared once for the whole batch.
+   *
+   * @param cb        callback
+   * @param who       principal trying to get access
+   * @param owner     owner of the entities
+   * @param how       desired access
+   * @param acls      encoded acl for each entity
+   * @param filter    if not null specifies maximum access
+   * @return CurrentAccess for each acl in order
+   * @throws AccessException on error
+   */
+  public static CurrentAccess[] evaluateAccess(final Access.AccessCb cb,
+                                               final AccessPrincipal who,
+                                               final AccessPrincipal owner,
+                                               final Privilege[] how,
+                                               final List<char[]> acls,
+                                               final PrivilegeSet filter)
+          throws AccessException {
+    return evaluateAccess(cb, who, owner, how, acls, filter, null);
+  }
+
+  /** As above but if an executor is supplied large batches are split into
+   * chunks which are evaluated concurrently. The results are in the same
+   * order as the acls whatever the executor.
+   *
+   * @param cb        callback - must be safe for concurrent use
+   * @param who       principal trying to get access
+   * @param owner     owner of the entities
+   * @param how       desired access
+   * @param acls      encoded acl for each entity
+   * @param filter    if not null specifies maximum access
+   * @param executor  null to evaluate on the calling thread
+   * @return CurrentAccess for each acl in order
+   * @throws AccessException on error
+   */
+  public static CurrentAccess[] evaluateAccess(final Access.AccessCb cb,
+                                               final AccessPrincipal who,
+                                               final AccessPrincipal owner,
+                                               final Privilege[] how,
+                                               final List<char[]> acls,
+                                               final PrivilegeSet filter,
+                                               final Executor executor)
+          throws AccessException {
+    final String ownerHref = owner.getPrincipalRef();
+    final String accessorHref = who.getPrincipalRef();
+    final long required = Privilege.indexMask(how);
+
+    final List<char[]> aclList;
+    if (acls instanceof RandomAccess) {
+      aclList = acls;
+    } else {
+      aclList = new ArrayList<>(acls);
+    }
+
+    final CurrentAccess[] res = new CurrentAccess[aclList.size()];
+
+    inChunks(res.length, executor, (from, to) -> {
+      for (int i = from; i < to; i++) {
+        res[i] = forRequest(getOrEvaluate(cb, who, owner,
+                                          ownerHref, accessorHref,
+                                          aclList.get(i)),
+                            required, filter);
+      }
+    });
+
+    return res;
+  }
+
+  /** Evaluate access for a number of principals to a single entity. The acl
+   * is decoded and compiled at most once for the whole batch.
+   *
+   * @param cb        callback
+   * @param whos      principals trying to get access
+   * @param owner     owner of the entity
+   * @param how       desired access
+   * @param aclChars  encoded acl for the entity
+   * @param filter    if not null specifies maximum access
+   * @return CurrentAccess for each principal in iteration order
+   * @throws AccessException on error
+   */
+  public static CurrentAccess[] evaluateAccess(final Access.AccessCb cb,
+                                               final Collection<? extends AccessPrincipal> whos,
+                                               final AccessPrincipal owner,
+                                               final Privilege[] how,
+                                               final char[] aclChars,
+                                               final PrivilegeSet filter)
+          throws AccessException {
+    return evaluateAccess(cb, whos, owner, how, aclChars, filter, null);
+  }
+
+  /** As above but if an executor is supplied large batches are split into
+   * chunks which are evaluated concurrently. The results are in the same
+   * order as the principals whatever the executor.
+   *
+   * @param cb        callback - must be safe for concurrent use
+   * @param whos      principals trying to get access
+   * @param owner     owner of the entity
+   * @param how       desired access
+   * @param aclChars  encoded acl for the entity
+   * @param filter    if not null specifies maximum access
+   * @param executor  null to evaluate on the calling thread
+   * @return CurrentAccess for each principal in iteration order
+   * @throws AccessException on error
+   */
+  public static CurrentAccess[] evaluateAccess(final Access.AccessCb cb,
+                                               final Collection<? extends AccessPrincipal> whos,
+                                               final AccessPrincipal owner,
+                                               final Privilege[] how,
+                                               final char[] aclChars,
+                                               final PrivilegeSet filter,
+                                               final Executor executor)
+          throws AccessException {
+    final String ownerHref = owner.getPrincipalRef();
+    final long aclFingerprint = EncodedAcl.fingerprint(aclChars);
+    final char[] shared = DecodedAclCache.share(CharBuffer.wrap(aclChars),
+                                                aclFingerprint);
+    final long required = Privilege.indexMask(how);
+    final AccessPrincipal[] whoArr = whos.toArray(new AccessPrincipal[0]);
+
+    final CurrentAccess[] res = new CurrentAccess[whoArr.length];
+
+    inChunks(res.length, executor, (from, to) -> {
+      /* Each chunk gets the decoded acl at most once */
+      Acl acl = null;
+
+      for (int i = from; i < to; i++) {
+        final AccessPrincipal who = whoArr[i];
+        final AccessKey key = new AccessKey(ownerHref, who.getPrincipalRef(),
+                                            aclFingerprint, shared);
+
+        CurrentAccess ca = get(key);
+
+        if (ca == null) {
+          if (acl == null) {
+            acl = DecodedAclCache.decode(shared, aclFingerprint);
+          }
+
+          final AclPlan plan = acl.getPlan();
+          ca = evaluateOnce(key, () -> evaluateAccessInt(cb, who,
+                                                         who::getGroupNames,
+                                                         owner, plan,
+                                                         shared, null));
+        }
+
+        res[i] = forRequest(ca, required, filter);
+      }
+    });
+
+    return res;
+  }
+
+  /** Evaluate access with the desired access and accessor href already
+   * prepared by the caller. Used by callers which evaluate a stream of
+   * entities with differing owners.
+   *
+   * @param cb            callback
+   * @param who           principal trying to get access
+   * @param accessorHref  who.getPrincipalRef()
+   * @param owner         owner of the entity
+   * @param required      mask from {@link Privilege#indexMask} - 0 for any
+   * @param aclChars      encoded acl for the entity
+   * @param filter        if not null specifies maximum access
+   * @return CurrentAccess   access + allowed/disallowed
+   * @throws AccessException on error
+   */
+  static CurrentAccess evaluateAccess(final Access.AccessCb cb,
+                                      final AccessPrincipal who,
+                                      final String accessorHref,
+                                      final AccessPrincipal owner,
+                                      final long required,
+                                      final char[] aclChars,
+                                      final PrivilegeSet filter)
+          throws AccessException {
+    return forRequest(getOrEvaluate(cb, who, owner,
+                                    owner.getPrincipalRef(), accessorHref,
+                                    aclChars),
+                      required, filter);
+  }
+
+  /* Evaluates the entries from (inclusive) to (exclusive) of a batch */
+  private interface BatchRange {
+    void evaluate(int from, int to) throws AccessException;
+  }
+
+  /* Split a batch of size entries into chunks and run them on the executor,
+   * waiting for them all to complete. Small batches or a null executor run
+   * on the calling thread.
+   */
+  private static void inChunks(final int size,
+                               final Executor executor,
+                               final BatchRange range) throws AccessException {
+    if ((executor == null) || (size <= minChunkSize)) {
+      range.evaluate(0, size);
+      return;
+    }
+
+    final int chunks = Math.min((size + minChunkSize - 1) / minChunkSize,
+                                Runtime.getRuntime().availableProcessors() * 4);
+    final int chunkSize = (size + chunks - 1) / chunks;
+
+    final List<CompletableFuture<Void>> futures = new ArrayList<>(chunks);
+
+    for (int from = 0; from < size; from += chunkSize) {
+      final int start = from;
+      final int end = Math.min(from + chunkSize, size);
+
+      futures.add(CompletableFuture.runAsync(() -> {
+        try {
+          range.evaluate(start, end);
+        } catch (final AccessException ae) {
+          throw new CompletionException(ae);
+        }
+      }, executor));
+    }
+
+    try {
+      CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+    } catch (final CompletionException ce) {
+      final Throwable t = ce.getCause();
+
+      if (t instanceof AccessException) {
+        throw (AccessException)t;
+      }
+
+      if (t instanceof RuntimeException) {
+        throw (RuntimeException)t;
+      }
+
+      throw new AccessException(t);
+    }
+  }
+
+  /** Evaluate access using a callback which does not block. If the result
+   * is cached the returned future is already complete. Otherwise the hrefs
+   * for the named principals in the acl, and the groups of the principal if
+   * needed, are resolved through the callback and the evaluation completes
+   * when they have all been resolved.
+   *
+   * @param cb        asynchronous callback
+   * @param who       principal trying to get access
+   * @param owner     owner of the entity
+   * @param how       desired access
+   * @param aclChars  encoded acl for the entity
+   * @param filter    if not null specifies maximum access
+   * @return future CurrentAccess - completes exceptionally with an
+   *         AccessException on error
+   */
+  public static CompletableFuture<CurrentAccess> evaluateAccessAsync(
+          final Access.AsyncAccessCb cb,
+          final AccessPrincipal who,
+          final AccessPrincipal owner,
+          final Privilege[] how,
+          final char[] aclChars,
+          final PrivilegeSet filter) {
+    final long required = Privilege.indexMask(how);
+    final AccessKey probe = new AccessKey(owner.getPrincipalRef(),
+                                          who.getPrincipalRef(),
+                                          CharBuffer.wrap(aclChars));
+
+    final CurrentAccess cached = get(probe);
+
+    if (cached != null) {
+      return CompletableFuture.completedFuture(forRequest(cached, required,
+                                                          filter));
+    }
+
+    /* Only a miss needs the shared copy of the acl */
+    final AccessKey key = probe.forTable();
+
+    final CompletableFuture<CurrentAccess> mine = new CompletableFuture<>();
+    final CompletableFuture<CurrentAccess> theirs =
+            inFlight.putIfAbsent(key, mine);
+
+    if (theirs != null) {
+      coalesced.increment();
+
+      return theirs.thenApply(ca -> forRequest(ca, required, filter));
+    }
+
+    final CompletableFuture<CurrentAccess> evaluated;
+    try {
+      evaluated = evaluateAsync(cb, who, owner, key, key.sharedChars());
+    } catch (final Throwable t) {
+      /* The callback failed before giving us a future */
+      inFlight.remove(key, mine);
+      mine.completeExceptionally(t);
+
+      return CompletableFuture.failedFuture(t);
+    }
+
+    evaluated.whenComplete((ca, t) -> {
+      inFlight.remove(key, mine);
+
+      if (t != null) {
+        mine.completeExceptionally(t);
+      } else {
+        mine.complete(ca);
+      }
+    });
+
+    return evaluated.thenApply(ca -> forRequest(ca, required, filter));
+  }
+
+  /* Resolve the principals and evaluate and cache the unfiltered access. */
+  private static CompletableFuture<CurrentAccess> evaluateAsync(
+          final Access.AsyncAccessCb cb,
+          final AccessPrincipal who,
+          final AccessPrincipal owner,
+          final AccessKey key,
+          final char[] aclChars) {
+    final AclPlan plan;
+    final Collection<Ace> aces;
+    try {
+      final Acl acl = DecodedAclCache.decode(aclChars, key.aclId);
+      plan = acl.getPlan();
+      aces = acl.getAces();
+    } catch (final AccessException ae) {
+      return CompletableFuture.failedFuture(ae);
+    }
+
+    final AsyncCbAdapter adapter = new AsyncCbAdapter(cb);
+    final boolean isOwner = !who.getUnauthenticated() && who.equals(owner);
+    final List<CompletableFuture<Void>> hrefs = new ArrayList<>();
+    final Set<String> requested = new HashSet<>();
+    CompletableFuture<Collection<String>> groups =
+            CompletableFuture.completedFuture(null);
+
+    /* The owner never gets as far as the named aces */
+    if (!isOwner) {
+      if (who.getPrincipalRef() != null) {
+        for (final Ace ace: aces) {
+          final AceWho aw = ace.getWho();
+
+          if ((aw.getWho() == null) || !whoTypeNamed[aw.getWhoType()] ||
+                  aw.hasHref(adapter)) {
+            continue;
+          }
+
+          final String hrefKey = AsyncCbAdapter.key(aw.getWho(),
+                                                    aw.getWhoType());
+          if (!requested.add(hrefKey)) {
+            continue;
+          }
+
+          hrefs.add(cb.makeHref(aw.getWho(), aw.getWhoType())
+                      .thenAccept(h -> adapter.hrefs.put(hrefKey, h)));
+        }
+      }
+
+      if (plan.hasNamed(Ace.whoTypeGroup)) {
+        groups = cb.getGroupNames(who);
+      }
+    }
+
+    return CompletableFuture.allOf(hrefs.toArray(new CompletableFuture<?>[0]))
+            .thenCombine(groups, (v, groupNames) -> {
+              try {
+                CurrentAccess ca = evaluateAccessInt(adapter, who,
+                                                     () -> groupNames,
+                                                     owner, plan,
+                                                     aclChars, null);
+                put(key, ca);
+
+                return CompletableFuture.completedFuture(ca);
+              } catch (final UnresolvedHref uh) {
+                /* The remembered hrefs were flushed while we resolved the
+                 * others. Start again, resolving those as well.
+                 */
+                return evaluateAsync(cb, who, owner, key, aclChars);
+              } catch (final AccessException ae) {
+                throw new CompletionException(ae);
+              }
+            }).thenCompose(Function.identity());
+  }
+
+  /* Thrown by an AsyncCbAdapter asked for an href it does not have */
+  private static class UnresolvedHref extends AccessException {
+    UnresolvedHref(final String id) {
+      super("Unresolved href", id);
+    }
+  }
+
+  /* Presents hrefs resolved through an AsyncAccessCb as an AccessCb. Adapters
+   * for the same asynchronous callback are equal so that hrefs remembered by
+   * AceWho and indexes built by AclPlan are shared between evaluations.
+   */
+  private static class AsyncCbAdapter implements Access.AccessCb {
+    private final Access.AsyncAccessCb cb;
+
+    final Map<String, String> hrefs = new ConcurrentHashMap<>();
+
+    AsyncCbAdapter(final Access.AsyncAccessCb cb) {
+      this.cb = cb;
+    }
+
+    static String key(final String id, final int whoType) {
+      return whoType + ":" + id;
+    }
+
+    @Override
+    public String makeHref(final String id,
+                           final int whoType) throws AccessException {
+      final String href = hrefs.get(key(id, whoType));
+
+      if (href != null) {
+        return href;
+      }
+
+      /* Not resolved up front - e.g. the remembered hrefs were flushed
+       * while we were resolving the others. Waiting for the callback here
+       * would block so the evaluation is started again.
+       */
+      throw new UnresolvedHref(id);
+    }
+
+    @Override
+    public int hashCode() {
+      return cb.hashCode();
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      return (o instanceof AsyncCbAdapter) &&
+              ((AsyncCbAdapter)o).cb.equals(cb);
+    }
+  }
+
+  /* Get the unfiltered access from the cache or evaluate and cache it. */
+  private static CurrentAccess getOrEvaluate(final Access.AccessCb cb,
+                                             final AccessPrincipal who,
+                                             final AccessPrincipal owner,
+                                             final String ownerHref,
+                                             final String accessorHref,
+                                             final char[] aclChars)
+          throws AccessException {
+    return getOrEvaluate(cb, who, owner,
+                         new AccessKey(ownerHref, accessorHref,
+                                       CharBuffer.wrap(aclChars)),
+                         aclChars);
+  }
 
-    CurrentAccess ca = get(owner.getPrincipalRef(),
-                           who.getPrincipalRef(),
-                           howPriv, filter,
-                           aclString);
+  /* As above for an acl in any form. */
+  private static CurrentAccess getOrEvaluate(final Access.AccessCb cb,
+                                             final AccessPrincipal who,
+                                             final AccessPrincipal owner,
+                                             final String ownerHref,
+                                             final String accessorHref,
+                                             final CharSequence acl,
+                                             final char[] aclChars)
+          throws AccessException {
+    return getOrEvaluate(cb, who, owner,
+                         new AccessKey(ownerHref, accessorHref, acl),
+                         aclChars);
+  }
+
+  /* As above for a probe holding the acl. aclChars are the same characters
+   * as the acl if the caller has them, otherwise null. Entries hold a shared
+   * copy of the characters in either case.
+   */
+  private static CurrentAccess getOrEvaluate(final Access.AccessCb cb,
+                                             final AccessPrincipal who,
+                                             final AccessPrincipal owner,
+                                             final AccessKey probe,
+                                             final char[] aclChars)
+          throws AccessException {
+    final CurrentAccess ca = get(probe);
 
     if (ca != null) {
       return ca;
     }
 
-    ca = evaluateAccessInt(cb, who, owner, how, aclChars, filter);
+    final AccessKey key = probe.forTable();
+    final char[] chars = key.sharedChars();
 
-    if (ca == null) {
-      return null;
+    return evaluateOnce(key, () -> evaluateAccessInt(cb, who, owner,
+                                                     chars));
+  }
+
+  private interface Evaluator {
+    CurrentAccess evaluate() throws AccessException;
+  }
+
+  /* Called after a miss. If nobody else is evaluating the key, evaluate it
+   * and cache the result, otherwise wait for their result.
+   */
+  private static CurrentAccess evaluateOnce(final AccessKey key,
+                                            final Evaluator evaluator)
+          throws AccessException {
+    final CompletableFuture<CurrentAccess> mine = new CompletableFuture<>();
+    final CompletableFuture<CurrentAccess> theirs =
+            inFlight.putIfAbsent(key, mine);
+
+    if (theirs != null) {
+      coalesced.increment();
+
+      try {
+        return theirs.join();
+      } catch (final CompletionException ce) {
+        final Throwable t = ce.getCause();
+
+        if (t instanceof AccessException) {
+          throw (AccessException)t;
+        }
+
+        if (t instanceof RuntimeException) {
+          throw (RuntimeException)t;
+        }
+
+        throw new AccessException(t);
+      }
+    }
+
+    try {
+      /* Whoever was evaluating it may have finished after our miss */
+      final CacheEntry ent = entries.get(key);
+      final CurrentAccess ca;
+
+      if (ent != null) {
+        ca = ent.ca;
+      } else {
+        ca = evaluator.evaluate();
+        put(key, ca);
+      }
+
+      mine.complete(ca);
+
+      return ca;
+    } catch (final Throwable t) {
+      mine.completeExceptionally(t);
+      throw t;
+    } finally {
+      inFlight.remove(key, mine);
     }
+  }
+
+  /** Apply the filter to the unfiltered access and determine if the desired
+   * access is allowed.
+   *
+   * @param eca       unfiltered access
+   * @param required  mask of privilege indexes wanted - 0 for any
+   * @param filter    if not null specifies maximum access
+   * @return CurrentAccess   access + allowed/disallowed
+   */
+  private static CurrentAccess forRequest(final CurrentAccess eca,
+                                          final long required,
+                                          final PrivilegeSet filter) {
+    CurrentAccess ca = new CurrentAccess();
+
+    ca.acl = eca.acl;
+    ca.aclChars = eca.aclChars;
+    ca.aclBytes = eca.aclBytes;
+    ca.privileges = eca.privileges;
+
+    if (ca.privileges == null) {
+      if (logger.debug()) {
+        logger.debug("...Check access denied (noprivs)");
+      }
+      return ca;
+    }
+
+    if (filter != null) {
+      ca.privileges = PrivilegeSet.filterPrivileges(ca.privileges, filter);
+    }
+
+    if (usePool) {
+      ca.privileges = privSets.get(ca.privileges);
+    }
+
+    if (required == 0) {
+      // Means any access will do
+
+      ca.accessAllowed = ca.privileges.getAnyAllowed();
+      if (logger.debug()) {
+        if (ca.accessAllowed) {
+          logger.debug("...Check access allowed (any requested)");
+        } else {
+          logger.debug("...Check access denied (any requested)");
+        }
+      }
+
+      return ca;
+    }
+
+    /* Caller specified some access rights they wanted - all of them must be
+     * granted.
+     */
+
+    ca.accessAllowed = ca.privileges.getAllowed(required);
 
-    put(owner.getPrincipalRef(),
-        who.getPrincipalRef(),
-        howPriv, filter,
-        aclString,
-        ca);
+    if (logger.debug()) {
+      if (ca.accessAllowed) {
+        logger.debug("...Check access allowed");
+      } else {
+        logger.debug("...Check access denied (!allowed) " + ca.privileges);
+      }
+    }
 
     return ca;
   }
 
+  /* Evaluate the full set of privileges for the principal. The result has no
+   * filter applied and says nothing about whether any particular access is
+   * allowed.
+   */
+  private static CurrentAccess evaluateAccessInt(final Access.AccessCb cb,
+                                                 final AccessPrincipal who,
+                                                 final AccessPrincipal owner,
+                                                 final char[] aclChars)
+          throws AccessException {
+    if (aclChars != null) {
+      /* Try to evaluate without decoding */
+      final AclScanner scanner = new AclScanner(aclChars);
+
+      if (scanner.scan()) {
+        return evaluateAccessInt(cb, who, who::getGroupNames, owner,
+                                 scanner, aclChars, null);
+      }
+    }
+
+    return evaluateAccessInt(cb, who, who::getGroupNames, owner,
+                             DecodedAclCache.decode(aclChars).getPlan(),
+                             aclChars, null);
+  }
+
+  /* As above for an acl in binary form */
+  private static CurrentAccess evaluateAccessInt(final Access.AccessCb cb,
+                                                 final AccessPrincipal who,
+                                                 final AccessPrincipal owner,
+                                                 final byte[] aclBytes)
+          throws AccessException {
+    final BinaryAclScanner scanner = new BinaryAclScanner(aclBytes);
+
+    if (scanner.scan()) {
+      return evaluateAccessInt(cb, who, who::getGroupNames, owner,
+                               scanner, null, aclBytes);
+    }
+
+    final Acl acl = DecodedAclCache.decode(BinaryAcl.toChars(aclBytes));
+
+    return evaluateAccessInt(cb, who, who::getGroupNames, owner,
+                             acl.getPlan(), null, aclBytes);
+  }
+
+  /* groupNames supplies the groups of who. It is only called if the acl has
+   * group aces which we need to look at.
+   *
+   * The acl is in aclChars or, if it was given in binary form, aclBytes.
+   * The result does not hold the decoded acl. It is only decoded, or found
+   * in the DecodedAclCache, if someone asks for it.
+   */
   private static CurrentAccess evaluateAccessInt(final Access.AccessCb cb,
-                                          final AccessPrincipal who,
-                                          final AccessPrincipal owner,
-                                          final Privilege[] how,
-                                          final char[] aclChars,
-                                          final PrivilegeSet filter)
+                                                 final AccessPrincipal who,
+                                                 final Supplier<Collection<String>> groupNames,
+                                                 final AccessPrincipal owner,
+                                                 final MergedPrivileges plan,
+                                                 final char[] aclChars,
+                                                 final byte[] aclBytes)
           throws AccessException {
     evaluations.count++;
 
@@ -341,9 +1514,8 @@ public class EvaluatedAccessCache implements Serializable {
     boolean isOwner = false;
     CurrentAccess ca = new CurrentAccess();
 
-    Acl acl = decode(aclChars);
-    ca.acl = acl;
     ca.aclChars = aclChars;
+    ca.aclBytes = aclBytes;
 
     if (authenticated) {
       isOwner = who.equals(owner);
@@ -353,10 +1525,13 @@ public class EvaluatedAccessCache implements Serializable {
 
     if (logger.debug()) {
       debugsb = new StringBuilder("Check access for '");
-      if (aclChars == null) {
-        debugsb.append("NULL");
-      } else {
+      if (aclChars != null) {
         debugsb.append(new String(aclChars));
+      } else if (aclBytes != null) {
+        debugsb.append(aclBytes.length);
+        debugsb.append(" bytes binary");
+      } else {
+        debugsb.append("NULL");
       }
       debugsb.append("'\n");
 
@@ -371,18 +1546,18 @@ public class EvaluatedAccessCache implements Serializable {
       debugsb.append("'\n");
     }
 
-    if (aclChars == null) {
+    if ((aclChars == null) && (aclBytes == null)) {
       return ca;
     }
 
     getPrivileges: {
       if (!authenticated) {
-        ca.privileges = Ace.findMergedPrivilege(acl, cb, null,
-                                                Ace.whoTypeUnauthenticated);
+        ca.privileges = plan.findMergedPrivilege(cb, null,
+                                                 Ace.whoTypeUnauthenticated);
 
         if (ca.privileges == null) {
           // All might be available
-          ca.privileges = Ace.findMergedPrivilege(acl, cb, null, Ace.whoTypeAll);
+          ca.privileges = plan.findMergedPrivilege(cb, null, Ace.whoTypeAll);
         }
 
         if (ca.privileges != null) {
@@ -396,7 +1571,7 @@ public class EvaluatedAccessCache implements Serializable {
       }
 
       if (isOwner) {
-        ca.privileges = Ace.findMergedPrivilege(acl, cb, null, Ace.whoTypeOwner);
+        ca.privileges = plan.findMergedPrivilege(cb, null, Ace.whoTypeOwner);
         if (ca.privileges == null) {
           ca.privileges = PrivilegeSet.makeDefaultOwnerPrivileges();
         }
@@ -410,31 +1585,26 @@ public class EvaluatedAccessCache implements Serializable {
       }
 
       // Not owner - look for user
-      ca.privileges = Ace.findMergedPrivilege(acl, cb,
-                                              who.getPrincipalRef(),
-                                              Ace.whoTypeUser);
+      ca.privileges = plan.findMergedPrivilege(cb, who.getPrincipalRef(),
+                                               Ace.whoTypeUser);
 
       // Treat resources, tickets, hosts and venues like user
       // XXX This assumes the account name is distinguishable.
       if (ca.privileges == null) {
-        ca.privileges = Ace.findMergedPrivilege(acl, cb,
-                                                who.getPrincipalRef(),
-                                                Ace.whoTypeResource);
+        ca.privileges = plan.findMergedPrivilege(cb, who.getPrincipalRef(),
+                                                 Ace.whoTypeResource);
       }
       if (ca.privileges == null) {
-        ca.privileges = Ace.findMergedPrivilege(acl, cb,
-                                                who.getPrincipalRef(),
-                                                Ace.whoTypeTicket);
+        ca.privileges = plan.findMergedPrivilege(cb, who.getPrincipalRef(),
+                                                 Ace.whoTypeTicket);
       }
       if (ca.privileges == null) {
-        ca.privileges = Ace.findMergedPrivilege(acl, cb,
-                                                who.getPrincipalRef(),
-                                                Ace.whoTypeVenue);
+        ca.privileges = plan.findMergedPrivilege(cb, who.getPrincipalRef(),
+                                                 Ace.whoTypeVenue);
       }
       if (ca.privileges == null) {
-        ca.privileges = Ace.findMergedPrivilege(acl, cb,
-                                                who.getPrincipalRef(),
-                                                Ace.whoTypeHost);
+        ca.privileges = plan.findMergedPrivilege(cb, who.getPrincipalRef(),
+                                                 Ace.whoTypeHost);
       }
 
       if (ca.privileges != null) {
@@ -448,14 +1618,21 @@ public class EvaluatedAccessCache implements Serializable {
 
       // No specific user access - look for group access
 
-      if (who.getGroupNames() != null) {
-        for (String group: who.getGroupNames()) {
+      final Collection<String> groups;
+      if (plan.hasNamed(Ace.whoTypeGroup)) {
+        groups = groupNames.get();
+      } else {
+        groups = null;
+      }
+
+      if (groups != null) {
+        for (String group: groups) {
           if (logger.debug()) {
             debugsb.append("...Try access for group " + group);
             debugsb.append("'\n");
           }
-          PrivilegeSet privs = Ace.findMergedPrivilege(acl, cb, group,
-                                                       Ace.whoTypeGroup);
+          PrivilegeSet privs = plan.findMergedPrivilege(cb, group,
+                                                        Ace.whoTypeGroup);
           if (privs != null) {
             ca.privileges = PrivilegeSet.mergePrivileges(ca.privileges, privs,
                                                          false);
@@ -474,8 +1651,8 @@ public class EvaluatedAccessCache implements Serializable {
 
       // "authenticated" access set?
       if (authenticated) {
-        ca.privileges = Ace.findMergedPrivilege(acl, cb, null,
-                                                Ace.whoTypeAuthenticated);
+        ca.privileges = plan.findMergedPrivilege(cb, null,
+                                                 Ace.whoTypeAuthenticated);
       }
 
       if (ca.privileges != null) {
@@ -488,11 +1665,11 @@ public class EvaluatedAccessCache implements Serializable {
       }
 
       // "other" access set?
-      ca.privileges = Ace.findMergedPrivilege(acl, cb, null, Ace.whoTypeOther);
+      ca.privileges = plan.findMergedPrivilege(cb, null, Ace.whoTypeOther);
 
       if (ca.privileges == null) {
         // All might be available
-        ca.privileges = Ace.findMergedPrivilege(acl, cb, null, Ace.whoTypeAll);
+        ca.privileges = plan.findMergedPrivilege(cb, null, Ace.whoTypeAll);
       }
 
       if (ca.privileges != null) {
@@ -521,64 +1698,17 @@ public class EvaluatedAccessCache implements Serializable {
 
     if (ca.privileges == null) {
       if (logger.debug()) {
-        logger.debug(debugsb.toString() + "...Check access denied (noprivs)");
+        logger.debug(debugsb.toString() + "...no privileges");
       }
       return ca;
     }
 
     ca.privileges = PrivilegeSet.setUnspecified(ca.privileges, isOwner);
 
-    if (filter != null) {
-      ca.privileges = PrivilegeSet.filterPrivileges(ca.privileges, filter);
-    }
-
-    if (usePool) {
-      ca.privileges = privSets.get(ca.privileges);
-    }
-
-    if (how.length == 0) {
-      // Means any access will do
-
-      ca.accessAllowed = ca.privileges.getAnyAllowed();
-      if (logger.debug()) {
-        if (ca.accessAllowed) {
-          logger.debug(debugsb.toString() +
-                                "...Check access allowed (any requested)");
-        } else {
-          logger.debug(debugsb.toString() +
-                                "...Check access denied (any requested)");
-        }
-      }
-
-      return ca;
-    }
-
-    /* Check each requested access right. If denied, fail immediately, otherwise
-     * continue to the next request right.
-     */
-
-    for (int i = 0; i < how.length; i++) {
-      char priv = ca.privileges.getPrivilege(how[i].getIndex());
-
-      if ((priv != allowed) && (priv != allowedInherited)) {
-        if (logger.debug()) {
-          debugsb.append("...Check access denied (!allowed) ");
-          debugsb.append(ca.privileges);
-          logger.debug(debugsb.toString());
-        }
-        return ca;
-      }
-    }
-
-    /* Caller specified some access rights they wanted and all of them are
-     * granted.
-     */
-
     if (logger.debug()) {
-      logger.debug(debugsb.toString() + "...Check access allowed");
+      logger.debug(debugsb.toString() + "...Evaluated " + ca.privileges);
     }
 
-    ca.accessAllowed = true;
     return ca;
   }
 }
@@ -0,0 +1,45 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access;
+
+/** What access evaluation needs to know about an acl: the merged privileges
+ * of the aces which apply to a given principal and who type.
+ *
+ *  @author Mike Douglass   douglm - bedework.org
+ */
+interface MergedPrivileges {
+  /** Return the merged privileges for all aces which match the name and
+   * whoType.
+   *
+   * @param cb callback
+   * @param name principal href - ignored for unnamed types
+   * @param whoType the type we are looking for
+   * @return PrivilegeSet    merged privileges if we find a match else null
+   * @throws AccessException on error
+   */
+  PrivilegeSet findMergedPrivilege(Access.AccessCb cb,
+                                   String name,
+                                   int whoType) throws AccessException;
+
+  /**
+   * @param whoType of interest
+   * @return true if there are any aces of the given named type
+   */
+  boolean hasNamed(int whoType);
+}
@@ -50,6 +50,9 @@ public class Privilege implements PrivilegeDefs {
 
   private ArrayList<Privilege> containedPrivileges = new ArrayList<Privilege>();
 
+  /* Bits for this and all contained privileges - calculated on demand */
+  private volatile long mask;
+
   /** Constructor
    *
    * @param name         the privilege name
@@ -150,6 +153,13 @@ public class Privilege implements PrivilegeDefs {
     return index;
   }
 
+  /**
+   * @return char encoding this privilege in an acl
+   */
+  public char getEncoding() {
+    return encoding;
+  }
+
   /**
    * @return containedPrivileges
    */
@@ -157,6 +167,43 @@ public class Privilege implements PrivilegeDefs {
     return Collections.unmodifiableCollection(containedPrivileges);
   }
 
+  /** A mask with a bit set for this privilege and every privilege it
+   * contains. Bits are indexed by privilege index.
+   *
+   * @return long mask
+   */
+  long getMask() {
+    long m = mask;
+
+    if (m == 0) {
+      m = 1L << index;
+
+      for (Privilege p: containedPrivileges) {
+        m |= p.getMask();
+      }
+
+      mask = m;
+    }
+
+    return m;
+  }
+
+  /** A mask with a bit set for the index of each of the privileges. Unlike
+   * {@link #getMask()} contained privileges are not included.
+   *
+   * @param privs privileges
+   * @return long mask
+   */
+  static long indexMask(final Privilege[] privs) {
+    long m = 0;
+
+    for (Privilege p: privs) {
+      m |= 1L << p.getIndex();
+    }
+
+    return m;
+  }
+
   /* ====================================================================
    *                 Decoding methods
    * ==================================================================== */
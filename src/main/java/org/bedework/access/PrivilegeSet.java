@@ -25,12 +25,23 @@ import java.util.ArrayList;
 import java.util.Collection;
 
 /** Immutable object to define allowed privileges for a principal
+ *
+ * <p>The state of each privilege is held as a bit, indexed by privilege
+ * index, in one of four masks. A privilege with no bit set in any mask is
+ * unspecified. Merging and filtering sets is then a few bitwise operations
+ * and never needs to copy an array.
  *
  *  @author Mike Douglass   douglm  bedework.org
  */
 public class PrivilegeSet implements Serializable, PrivilegeDefs,
                                      Comparable<PrivilegeSet> {
-  private char[] privileges;
+  /** Mask with a bit set for every privilege index */
+  static final long allPrivsMask = (1L << (privMaxType + 1)) - 1;
+
+  private long allowedMask;
+  private long deniedMask;
+  private long allowedInheritedMask;
+  private long deniedInheritedMask;
 
   private static ObjectPool<PrivilegeSet> privSets = new ObjectPool<PrivilegeSet>();
 
@@ -250,49 +261,84 @@ public class PrivilegeSet implements Serializable, PrivilegeDefs,
                       final char privScheduleSendFreebusyState,
 
                       final char privNoneState) {
-    privileges = new char[privMaxType + 1];
-
-    privileges[privAll] = privAllState;
-    privileges[privRead] = privReadState;
-    privileges[privReadAcl] = privReadAclState;
-    privileges[privReadCurrentUserPrivilegeSet] = privReadCurrentUserPrivilegeSetState;
-    privileges[privReadFreeBusy] = privReadFreeBusyState;
-    privileges[privWrite] = privWriteState;
-    privileges[privWriteAcl] = privWriteAclState;
-    privileges[privWriteProperties] = privWritePropertiesState;
-    privileges[privWriteContent] = privWriteContentState;
-    privileges[privBind] = privBindState;
-    privileges[privSchedule] = privScheduleState;
-    privileges[privScheduleRequest] = privScheduleRequestState;
-    privileges[privScheduleReply] = privScheduleReplyState;
-    privileges[privScheduleFreeBusy] = privScheduleFreeBusyState;
-    privileges[privUnbind] = privUnbindState;
-    privileges[privUnlock] = privUnlockState;
-
-    privileges[privScheduleDeliver] = privScheduleDeliverState;
-    privileges[privScheduleDeliverInvite] = privScheduleDeliverInviteState;
-    privileges[privScheduleDeliverReply] = privScheduleDeliverReplyState;
-    privileges[privScheduleQueryFreebusy] = privScheduleQueryFreebusyState;
-
-    privileges[privScheduleSend] = privScheduleSendState;
-    privileges[privScheduleSendInvite] = privScheduleSendInviteState;
-    privileges[privScheduleSendReply] = privScheduleSendReplyState;
-    privileges[privScheduleSendFreebusy] = privScheduleSendFreebusyState;
-
-    privileges[privNone] = privNoneState;
+    final char[] states = new char[privMaxType + 1];
+
+    states[privAll] = privAllState;
+    states[privRead] = privReadState;
+    states[privReadAcl] = privReadAclState;
+    states[privReadCurrentUserPrivilegeSet] = privReadCurrentUserPrivilegeSetState;
+    states[privReadFreeBusy] = privReadFreeBusyState;
+    states[privWrite] = privWriteState;
+    states[privWriteAcl] = privWriteAclState;
+    states[privWriteProperties] = privWritePropertiesState;
+    states[privWriteContent] = privWriteContentState;
+    states[privBind] = privBindState;
+    states[privSchedule] = privScheduleState;
+    states[privScheduleRequest] = privScheduleRequestState;
+    states[privScheduleReply] = privScheduleReplyState;
+    states[privScheduleFreeBusy] = privScheduleFreeBusyState;
+    states[privUnbind] = privUnbindState;
+    states[privUnlock] = privUnlockState;
+
+    states[privScheduleDeliver] = privScheduleDeliverState;
+    states[privScheduleDeliverInvite] = privScheduleDeliverInviteState;
+    states[privScheduleDeliverReply] = privScheduleDeliverReplyState;
+    states[privScheduleQueryFreebusy] = privScheduleQueryFreebusyState;
+
+    states[privScheduleSend] = privScheduleSendState;
+    states[privScheduleSendInvite] = privScheduleSendInviteState;
+    states[privScheduleSendReply] = privScheduleSendReplyState;
+    states[privScheduleSendFreebusy] = privScheduleSendFreebusyState;
+
+    states[privNone] = privNoneState;
+
+    setStates(states);
   }
 
   /**
-   * @param privileges the priv set
+   * @param privileges the priv set - null for all unspecified
    */
   public PrivilegeSet(final char[] privileges) {
-    this.privileges = privileges;
+    if (privileges != null) {
+      setStates(privileges);
+    }
   }
 
   /**
    */
   public PrivilegeSet() {
-    privileges = defaultNonOwnerPrivileges.getPrivileges();
+    deniedMask = allPrivsMask;
+  }
+
+  /**
+   * @param allowedMask           bits for allowed privileges
+   * @param deniedMask            bits for denied privileges
+   * @param allowedInheritedMask  bits for inherited allowed privileges
+   * @param deniedInheritedMask   bits for inherited denied privileges
+   */
+  private PrivilegeSet(final long allowedMask,
+                       final long deniedMask,
+                       final long allowedInheritedMask,
+                       final long deniedInheritedMask) {
+    this.allowedMask = allowedMask;
+    this.deniedMask = deniedMask;
+    this.allowedInheritedMask = allowedInheritedMask;
+    this.deniedInheritedMask = deniedInheritedMask;
+  }
+
+  /**
+   * @param allowedMask           bits for allowed privileges
+   * @param deniedMask            bits for denied privileges
+   * @param allowedInheritedMask  bits for inherited allowed privileges
+   * @param deniedInheritedMask   bits for inherited denied privileges
+   * @return PrivilegeSet - the masks must not overlap
+   */
+  static PrivilegeSet fromMasks(final long allowedMask,
+                                final long deniedMask,
+                                final long allowedInheritedMask,
+                                final long deniedInheritedMask) {
+    return new PrivilegeSet(allowedMask, deniedMask,
+                            allowedInheritedMask, deniedInheritedMask);
   }
 
   /** Default privs for an owner
@@ -330,23 +376,13 @@ public class PrivilegeSet implements Serializable, PrivilegeDefs,
    * @return PrivilegeSet
    */
   public static PrivilegeSet makePrivileges(final Privilege priv) {
-    PrivilegeSet pset = new PrivilegeSet();
-
-    pset.privileges = new char[privMaxType + 1];
+    final long mask = priv.getMask();
 
     if (priv.getDenial()) {
-      pset.privileges[priv.getIndex()] = denied;
-    } else {
-      pset.privileges[priv.getIndex()] = allowed;
-    }
-
-    /* Iterate over the children */
-
-    for (Privilege p: priv.getContainedPrivileges()) {
-      pset.setPrivilege(p);
+      return pooled(new PrivilegeSet(0, mask, 0, 0));
     }
 
-    return pooled(pset);
+    return pooled(new PrivilegeSet(mask, 0, 0, 0));
   }
 
   /** Returns a set of flags indicating if the indexed privilege (see above
@@ -357,25 +393,8 @@ public class PrivilegeSet implements Serializable, PrivilegeDefs,
    * @throws AccessException
    */
   public static PrivilegeSet fromEncoding(final EncodedAcl acl) throws AccessException {
-    char[] privStates = {
-      unspecified,   // privAll
-      unspecified,   // privRead
-      unspecified,   // privReadAcl
-      unspecified,   // privReadCurrentUserPrivilegeSet
-      unspecified,   // privReadFreeBusy
-      unspecified,   // privWrite
-      unspecified,   // privWriteAcl
-      unspecified,   // privWriteProperties
-      unspecified,   // privWriteContent
-      unspecified,   // privBind
-      unspecified,   // privSchedule
-      unspecified,   // privScheduleRequest
-      unspecified,   // privScheduleReply
-      unspecified,   // privScheduleFreeBusy
-      unspecified,   // privUnbind
-      unspecified,   // privUnlock
-      unspecified,   // privNone
-    };
+    long allowedBits = 0;
+    long deniedBits = 0;
 
     while (acl.hasMore()) {
       char c = acl.getChar();
@@ -390,13 +409,16 @@ public class PrivilegeSet implements Serializable, PrivilegeDefs,
         throw AccessException.badACL("unknown priv " + acl.getErrorInfo());
       }
 
-      //System.out.println("found " + p);\
-
-      // Set the states based on the priv we just found.
-      setState(privStates, p, p.getDenial());
+      /* Allowed overrides denied whatever the order */
+      if (p.getDenial()) {
+        deniedBits |= p.getMask();
+      } else {
+        allowedBits |= p.getMask();
+      }
     }
 
-    return pooled(new PrivilegeSet(privStates));
+    return pooled(new PrivilegeSet(allowedBits, deniedBits & ~allowedBits,
+                                   0, 0));
   }
 
   /** Add the given privilege
@@ -407,25 +429,20 @@ public class PrivilegeSet implements Serializable, PrivilegeDefs,
    */
   public static PrivilegeSet addPrivilege(final PrivilegeSet pset,
                                           final Privilege priv) {
-    PrivilegeSet newPset = (PrivilegeSet)pset.clone();
-
-    if (newPset.privileges == null) {
-      newPset.privileges = defaultNonOwnerPrivileges.getPrivileges();
-    }
+    final long mask = priv.getMask();
+    final long keep = ~mask;
 
     if (priv.getDenial()) {
-      newPset.privileges[priv.getIndex()] = denied;
-    } else {
-      newPset.privileges[priv.getIndex()] = allowed;
-    }
-
-    /* Iterate over the children */
-
-    for (Privilege p: priv.getContainedPrivileges()) {
-      newPset.setPrivilege(p);
+      return new PrivilegeSet(pset.allowedMask & keep,
+                              pset.deniedMask | mask,
+                              pset.allowedInheritedMask & keep,
+                              pset.deniedInheritedMask & keep);
     }
 
-    return pooled(newPset);
+    return new PrivilegeSet(pset.allowedMask | mask,
+                            pset.deniedMask & keep,
+                            pset.allowedInheritedMask & keep,
+                            pset.deniedInheritedMask & keep);
   }
 
   /** Make a PrivilegeSet from the given privileges
@@ -434,25 +451,22 @@ public class PrivilegeSet implements Serializable, PrivilegeDefs,
    * @return PrivilegeSet
    */
   public static PrivilegeSet makePrivilegeSet(final Privilege[] privs) {
-    PrivilegeSet newPset = new PrivilegeSet();
-
-    newPset.privileges = defaultNonOwnerPrivileges.getPrivileges();
+    long allowedBits = 0;
+    long deniedBits = allPrivsMask;
 
     for (Privilege priv: privs) {
+      final long mask = priv.getMask();
+
       if (priv.getDenial()) {
-        newPset.privileges[priv.getIndex()] = denied;
+        allowedBits &= ~mask;
+        deniedBits |= mask;
       } else {
-        newPset.privileges[priv.getIndex()] = allowed;
-      }
-
-      /* Iterate over the children */
-
-      for (Privilege p: priv.getContainedPrivileges()) {
-        newPset.setPrivilege(p);
+        allowedBits |= mask;
+        deniedBits &= ~mask;
       }
     }
 
-    return pooled(newPset);
+    return pooled(new PrivilegeSet(allowedBits, deniedBits, 0, 0));
   }
 
   /** Get the given privilege
@@ -461,11 +475,25 @@ public class PrivilegeSet implements Serializable, PrivilegeDefs,
    * @return char
    */
   public char getPrivilege(final int index) {
-    if (privileges == null) {
-      return unspecified;
+    final long bit = 1L << index;
+
+    if ((allowedMask & bit) != 0) {
+      return allowed;
     }
 
-    return privileges[index];
+    if ((deniedMask & bit) != 0) {
+      return denied;
+    }
+
+    if ((allowedInheritedMask & bit) != 0) {
+      return allowedInherited;
+    }
+
+    if ((deniedInheritedMask & bit) != 0) {
+      return deniedInherited;
+    }
+
+    return unspecified;
   }
 
   /** Ensure this privilegeset has no privilege greater than those in the filter
@@ -476,21 +504,36 @@ public class PrivilegeSet implements Serializable, PrivilegeDefs,
    */
   public static PrivilegeSet filterPrivileges(final PrivilegeSet pset,
                                               final PrivilegeSet filter) {
-    PrivilegeSet newPset = (PrivilegeSet)pset.clone();
+    /* The filter value replaces ours where the filter is unspecified or
+     * where it denies something we allow.
+     */
+    final long replace =
+            filter.unspecifiedMask() |
+            ((filter.deniedMask | filter.deniedInheritedMask) &
+                     (pset.allowedMask | pset.allowedInheritedMask));
 
-    if (newPset.privileges == null) {
-      newPset.privileges = defaultNonOwnerPrivileges.getPrivileges();
+    if (replace == 0) {
+      return pset;
     }
 
-    char[] filterPrivs = filter.privileges;
+    final long keep = ~replace;
 
-    for (int pi = 0; pi < newPset.privileges.length; pi++) {
-      if (privAgtB(newPset.privileges[pi], filterPrivs[pi])) {
-        newPset.privileges[pi] = filterPrivs[pi];
-      }
-    }
+    return new PrivilegeSet(
+            (pset.allowedMask & keep) | (filter.allowedMask & replace),
+            (pset.deniedMask & keep) | (filter.deniedMask & replace),
+            (pset.allowedInheritedMask & keep) |
+                    (filter.allowedInheritedMask & replace),
+            (pset.deniedInheritedMask & keep) |
+                    (filter.deniedInheritedMask & replace));
+  }
 
-    return pooled(newPset);
+  /** Return true if all the privileges in the mask are allowed
+   *
+   * @param mask of privilege indexes - see {@link Privilege#indexMask}
+   * @return boolean
+   */
+  boolean getAllowed(final long mask) {
+    return ((allowedMask | allowedInheritedMask) & mask) == mask;
   }
 
   /** Return true if there is any allowed access
@@ -498,27 +541,12 @@ public class PrivilegeSet implements Serializable, PrivilegeDefs,
    * @return boolean
    */
   public boolean getAnyAllowed() {
-    if (privileges == null) {
-      return false;
-    }
-
-    for (int pi = 0; pi < privileges.length; pi++) {
-      char pr = privileges[pi];
-
-      if (pr == allowed) {
-        return true;
-      }
-
-      if (pr == allowedInherited) {
-        return true;
-      }
-    }
-
-    return false;
+    return (allowedMask | allowedInheritedMask) != 0;
   }
 
-  /** If current is null it is set to a cloned copy of morePriv otherwise the
-   * privilege(s) in morePriv are merged into current.
+  /** If current is null the result is morePriv otherwise the
+   * privilege(s) in morePriv are merged with current. Neither parameter is
+   * modified.
    *
    * <p>Specified access overrides inherited access,<br/>
    * allowed overrides denied overrides unspecified so the order is, from
@@ -536,31 +564,39 @@ public class PrivilegeSet implements Serializable, PrivilegeDefs,
   public static PrivilegeSet mergePrivileges(final PrivilegeSet current,
                                              final PrivilegeSet morePriv,
                                              final boolean inherited) {
-    PrivilegeSet mp = (PrivilegeSet)morePriv.clone();
+    long a = morePriv.allowedMask;
+    long d = morePriv.deniedMask;
+    long ai = morePriv.allowedInheritedMask;
+    long di = morePriv.deniedInheritedMask;
 
     if (inherited) {
-      for (int i = 0; i <= privMaxType; i++) {
-        char p = mp.getPrivilege(i);
-        if (p == allowed) {
-          mp.setPrivilege(i, allowedInherited);
-        } else if (p == denied) {
-          mp.setPrivilege(i, deniedInherited);
-        }
-      }
+      ai |= a;
+      di |= d;
+      a = 0;
+      d = 0;
     }
 
     if (current == null) {
-      return mp;
+      if (!inherited) {
+        return morePriv;
+      }
+
+      return new PrivilegeSet(0, 0, ai, di);
     }
 
-    for (int i = 0; i <= privMaxType; i++) {
-      char priv = mp.getPrivilege(i);
-      if (current.getPrivilege(i) < priv) {
-        current.setPrivilege(i, priv);
-      }
+    a |= current.allowedMask;
+    d = (d | current.deniedMask) & ~a;
+    ai = (ai | current.allowedInheritedMask) & ~(a | d);
+    di = (di | current.deniedInheritedMask) & ~(a | d | ai);
+
+    if ((a == current.allowedMask) &&
+            (d == current.deniedMask) &&
+            (ai == current.allowedInheritedMask) &&
+            (di == current.deniedInheritedMask)) {
+      return current;
     }
 
-    return pooled(current);
+    return new PrivilegeSet(a, d, ai, di);
   }
 
   /** Set all unspecified values to allowed for the owner or denied otherwise.
@@ -571,33 +607,38 @@ public class PrivilegeSet implements Serializable, PrivilegeDefs,
    */
   public static PrivilegeSet setUnspecified(final PrivilegeSet pset,
                                             final boolean isOwner) {
-    PrivilegeSet newPset = (PrivilegeSet)pset.clone();
+    final long unspec = pset.unspecifiedMask();
 
-    if (newPset.privileges == null) {
-      newPset.privileges = defaultNonOwnerPrivileges.getPrivileges();
+    if (unspec == 0) {
+      return pset;
     }
 
-    for (int pi = 0; pi < newPset.privileges.length; pi++) {
-      if (newPset.privileges[pi] == unspecified) {
-        if (isOwner) {
-          newPset.privileges[pi] = allowed;
-        } else {
-          newPset.privileges[pi] = denied;
-        }
-      }
+    if (isOwner) {
+      return new PrivilegeSet(pset.allowedMask | unspec,
+                              pset.deniedMask,
+                              pset.allowedInheritedMask,
+                              pset.deniedInheritedMask);
     }
 
-    return pooled(newPset);
+    return new PrivilegeSet(pset.allowedMask,
+                            pset.deniedMask | unspec,
+                            pset.allowedInheritedMask,
+                            pset.deniedInheritedMask);
   }
 
-  /**
+  /** The privileges as an array of states indexed by privilege index. This
+   * is a view of the internal representation - modifying it has no effect.
+   *
    * @return char[]  privileges for this object
    */
   public char[] getPrivileges() {
-    if (privileges == null) {
-      return null;
+    final char[] ps = new char[privMaxType + 1];
+
+    for (int pi = 0; pi < ps.length; pi++) {
+      ps[pi] = getPrivilege(pi);
     }
-    return privileges.clone();
+
+    return ps;
   }
 
   /** Return list of Privilege once we have removed all included Privileges
@@ -635,25 +676,41 @@ public class PrivilegeSet implements Serializable, PrivilegeDefs,
    *                   Private methods
    * ==================================================================== */
 
-  private void setUnspec(final char[] ps, final Privilege priv) {
-    ps[priv.getIndex()] = unspecified;
-
-    for (Privilege pr: priv.getContainedPrivileges()) {
-      setUnspec(ps, pr);
+  private void setStates(final char[] states) {
+    for (int pi = 0; (pi < states.length) && (pi <= privMaxType); pi++) {
+      final long bit = 1L << pi;
+
+      switch (states[pi]) {
+        case allowed:
+          allowedMask |= bit;
+          break;
+        case denied:
+          deniedMask |= bit;
+          break;
+        case allowedInherited:
+          allowedInheritedMask |= bit;
+          break;
+        case deniedInherited:
+          deniedInheritedMask |= bit;
+          break;
+        default:
+          // unspecified
+      }
     }
+  }
 
+  private long unspecifiedMask() {
+    return allPrivsMask & ~(allowedMask | deniedMask |
+            allowedInheritedMask | deniedInheritedMask);
   }
 
-  private static boolean privAgtB(final char priva, final char privb) {
-    if (privb == unspecified) {
-      return true;
-    }
+  private void setUnspec(final char[] ps, final Privilege priv) {
+    ps[priv.getIndex()] = unspecified;
 
-    if ((privb == denied) || (privb == deniedInherited)) {
-      return (priva == allowed) || (priva == allowedInherited);
+    for (Privilege pr: priv.getContainedPrivileges()) {
+      setUnspec(ps, pr);
     }
 
-    return false;
   }
 
   private static PrivilegeSet pooled(final PrivilegeSet val) {
@@ -664,70 +721,6 @@ public class PrivilegeSet implements Serializable, PrivilegeDefs,
     return privSets.get(val);
   }
 
-  /** Set the given privilege
-   *
-   * @param index
-   * @param val
-   */
-  private void setPrivilege(final int index, final char val) {
-    if (privileges == null) {
-      privileges = defaultNonOwnerPrivileges.getPrivileges();
-    }
-
-    privileges[index] = val;
-  }
-
-  /** Set the given privilege
-   *
-   * @param priv  Privilege object
-   */
-  private void setPrivilege(final Privilege priv) {
-    if (privileges == null) {
-      privileges = defaultNonOwnerPrivileges.getPrivileges();
-    }
-
-    if (priv.getDenial()) {
-      privileges[priv.getIndex()] = denied;
-    } else {
-      privileges[priv.getIndex()] = allowed;
-    }
-
-    /* Iterate over the children */
-
-    for (Privilege p: priv.getContainedPrivileges()) {
-      setPrivilege(p);
-    }
-  }
-
-  /* As an example, say we are setting read access. From above:
-   *      +-- [DAV: read] 'R'
-   *      |      |
-   *      |      +-- [DAV: read-acl]  'r'
-   *      |      +-- [DAV: read-current-user-privilege-set] 'P'
-   *      |      +-- [CALDAV:view-free-busy] 'F'
-   *
-   *  That is, read includes read-acl, read-current-user-privilege-set and
-   *  view-free-busy.
-   *
-   *  So for this we set allowed or denied in the states array for each of those
-   *  privileges.
-   */
-  private static void setState(final char[] states, final Privilege p, final boolean denial) {
-    // XXX Should we only set either way of the access is unspecified?
-    if (!denial) {
-      states[p.getIndex()] = allowed;
-//    } else {
-    } else if (states[p.getIndex()] == unspecified) {
-      states[p.getIndex()] = denied;
-    }
-
-    /* Iterate over the children */
-
-    for (Privilege pr: p.getContainedPrivileges()) {
-      setState(states, pr, denial);
-    }
-  }
-
   /* ====================================================================
    *                   Object methods
    * ==================================================================== */
@@ -737,64 +730,55 @@ public class PrivilegeSet implements Serializable, PrivilegeDefs,
       return 0;
     }
 
-    if (privileges == null) {
-      if (that.privileges != null) {
-        return -1;
-      }
-
-      return 0;
+    int res = Long.compare(allowedMask, that.allowedMask);
+    if (res != 0) {
+      return res;
     }
 
-    if (that.privileges == null) {
-      return 1;
+    res = Long.compare(deniedMask, that.deniedMask);
+    if (res != 0) {
+      return res;
     }
 
-    for (int pi = 0; pi < privileges.length; pi++) {
-      char thisp = privileges[pi];
-      char thatp = that.privileges[pi];
-
-      if (thisp < thatp) {
-        return -1;
-      }
-
-      if (thisp > thatp) {
-        return -1;
-      }
+    res = Long.compare(allowedInheritedMask, that.allowedInheritedMask);
+    if (res != 0) {
+      return res;
     }
 
-    return 0;
+    return Long.compare(deniedInheritedMask, that.deniedInheritedMask);
   }
 
   @Override
   public int hashCode() {
-    int hc = 7;
-
-    if (privileges == null) {
-      return hc;
-    }
+    long hc = allowedMask;
 
-    for (int pi = 0; pi < privileges.length; pi++) {
-      hc *= privileges[pi];
-    }
+    hc = hc * 31 + deniedMask;
+    hc = hc * 31 + allowedInheritedMask;
+    hc = hc * 31 + deniedInheritedMask;
 
-    return hc;
+    return (int)(hc ^ (hc >>> 32));
   }
 
   @Override
   public boolean equals(final Object o) {
+    if (!(o instanceof PrivilegeSet)) {
+      return false;
+    }
+
     return compareTo((PrivilegeSet)o) == 0;
   }
 
   @Override
   public Object clone() {
-    return new PrivilegeSet(getPrivileges());
+    return new PrivilegeSet(allowedMask, deniedMask,
+                            allowedInheritedMask, deniedInheritedMask);
   }
 
   @Override
   public String toString() {
     StringBuilder sb = new StringBuilder("PrivilegeSet[");
 
-    sb.append(privileges);
+    sb.append(getPrivileges());
     sb.append("]");
 
     return sb.toString();
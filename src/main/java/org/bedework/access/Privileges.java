@@ -90,10 +90,19 @@ public class Privileges implements PrivilegeDefs {
   private final static Privilege[] privs = new Privilege[privMaxType + 1];
   private final static Privilege[] deniedPrivs = new Privilege[privMaxType + 1];
 
+  /* Indexed by encoding char - the privilege Privilege.findPriv would find
+   * in the allowed and denied trees
+   */
+  private final static Privilege[] allowedByEncoding = new Privilege[128];
+  private final static Privilege[] deniedByEncoding = new Privilege[128];
+
   static {
     makePrivileges(privs, false);
     makePrivileges(deniedPrivs, true);
 
+    indexEncodings(privs[privAll], allowedByEncoding);
+    indexEncodings(privs[privNone], deniedByEncoding);
+
     /*
     for (Privilege p: privs) {
       System.out.println(p);
@@ -177,8 +186,7 @@ public class Privileges implements PrivilegeDefs {
       }
       acl.back();
 
-      Privilege p = Privilege.findPriv(privs[privAll],
-                                       privs[privNone], acl);
+      Privilege p = findPriv(acl);
       if (p == null) {
         throw AccessException.badACL("unknown priv");
       }
@@ -189,6 +197,70 @@ public class Privileges implements PrivilegeDefs {
     return al;
   }
 
+  /** Return the privilege with the given encoding. The result is the same as
+   * {@link Privilege#findPriv} applied to the allowed and denied roots.
+   *
+   * @param c       encoding character
+   * @param denial  true for the denied privilege
+   * @return Privilege or null for an unknown encoding
+   */
+  static Privilege fromEncoding(final char c,
+                                final boolean denial) {
+    if (c >= allowedByEncoding.length) {
+      return null;
+    }
+
+    if (denial) {
+      return deniedByEncoding[c];
+    }
+
+    return allowedByEncoding[c];
+  }
+
+  /* Table driven version of Privilege.findPriv for the standard roots */
+  private static Privilege findPriv(final EncodedAcl acl)
+          throws AccessException {
+    if (acl.remaining() < 2) {
+      return null;
+    }
+
+    final char flag = acl.getChar();
+    final boolean denial;
+
+    if ((flag == denied) || (flag == oldDenied)) {
+      denial = true;
+    } else if ((flag == allowed) || (flag == oldAllowed)) {
+      denial = false;
+    } else {
+      throw AccessException.badACE("privilege flag=" + flag +
+                                           " " + acl.getErrorInfo());
+    }
+
+    final Privilege p = fromEncoding(acl.getChar(), denial);
+
+    if (p == null) {
+      acl.back(2);
+    }
+
+    return p;
+  }
+
+  /* Depth first so the first privilege found for an encoding wins as it
+   * does in Privilege.findPriv
+   */
+  private static void indexEncodings(final Privilege p,
+                                     final Privilege[] table) {
+    final char c = p.getEncoding();
+
+    if ((c < table.length) && (table[c] == null)) {
+      table[c] = p;
+    }
+
+    for (final Privilege cp: p.getContainedPrivileges()) {
+      indexEncodings(cp, table);
+    }
+  }
+
   private static void makePrivileges(Privilege[] ps,
                                      boolean denial) {
     /* ---------------- read privileges ----------------------- */
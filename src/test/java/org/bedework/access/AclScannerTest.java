@@ -0,0 +1,219 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.TreeMap;
+
+/** Check the scanners which evaluate encoded acls in place against decoding
+ * the acl and merging the aces. Acls are generated at random from a fixed
+ * seed so failures can be repeated.
+ */
+public class AclScannerTest extends TestCase
+        implements PrivilegeDefs, WhoDefs {
+  private static final int iterations = 20000;
+
+  private static final String[] names = {"a", "b", "c", "ab", "", "\uD800"};
+
+  /* Principals we evaluate for - some match the names above */
+  private static final String[] hrefs = {
+    null, "/p/1/a", "/p/2/b", "/p/3/c", "/p/1/ab", "/p/1/", "zzz"
+  };
+
+  private static final Access.AccessCb cb =
+          (id, whoType) -> "/p/" + whoType + "/" + id;
+
+  /** Sorted, unsorted, inherited and group acls in text and binary form
+   *
+   * @throws Throwable on error
+   */
+  public void testScannersMatchDecodedAcl() throws Throwable {
+    final Random rand = new Random(20121);
+    int scanned = 0;
+    int unsorted = 0;
+
+    for (int iter = 0; iter < iterations; iter++) {
+      final boolean sorted = rand.nextInt(4) != 0;
+      final char[] chars = randomAcl(rand, sorted);
+      final String msg = "iter=" + iter + " acl=" + new String(chars);
+
+      assertTrue(msg, Arrays.equals(chars,
+                                    BinaryAcl.toChars(BinaryAcl.fromChars(chars))));
+
+      Acl acl = null;
+      try {
+        acl = Acl.decode(chars);
+      } catch (final AccessException ignored) {
+      }
+
+      final AclScanner sc = new AclScanner(chars);
+      final boolean ok = sc.scan();
+
+      if (acl == null) {
+        assertFalse(msg, ok);
+        continue;
+      }
+
+      /* Sorted acls must not fall back to decoding */
+      if (sorted) {
+        assertTrue(msg, ok);
+      }
+
+      final byte[] bin = BinaryAcl.fromChars(chars);
+      BinaryAclScanner bs = null;
+      if (BinaryAcl.isBinary(bin)) {
+        bs = new BinaryAclScanner(bin);
+        if (!bs.scan()) {
+          assertFalse(msg, sorted);
+          bs = null;
+        }
+      }
+
+      if (ok) {
+        scanned++;
+      } else {
+        unsorted++;
+      }
+
+      final AclPlan plan = acl.getPlan();
+
+      for (int whoType = 0; whoType < whoTypeNamed.length; whoType++) {
+        if (whoTypeNamed[whoType]) {
+          if (ok) {
+            assertEquals(msg, plan.hasNamed(whoType), sc.hasNamed(whoType));
+          }
+          if (bs != null) {
+            assertEquals(msg, plan.hasNamed(whoType), bs.hasNamed(whoType));
+          }
+        }
+
+        for (final String href: hrefs) {
+          /* Evaluation only passes a name for the named types */
+          if (!whoTypeNamed[whoType] && (href != null)) {
+            continue;
+          }
+
+          final String what = msg + " whoType=" + whoType + " href=" + href;
+          final PrivilegeSet expected =
+                  Ace.findMergedPrivilege(acl, cb, href, whoType);
+
+          assertTrue(what,
+                     Objects.equals(expected,
+                                    plan.findMergedPrivilege(cb, href,
+                                                             whoType)));
+
+          if (ok) {
+            assertTrue(what,
+                       Objects.equals(expected,
+                                      sc.findMergedPrivilege(cb, href,
+                                                             whoType)));
+          }
+
+          if (bs != null) {
+            assertTrue(what,
+                       Objects.equals(expected,
+                                      bs.findMergedPrivilege(cb, href,
+                                                             whoType)));
+          }
+        }
+      }
+    }
+
+    /* Make sure both paths were exercised */
+    assertTrue(scanned > iterations / 2);
+    assertTrue(unsorted > 0);
+  }
+
+  /* Up to five aces of any who type, some negated, some inherited. Unsorted
+   * acls may hold duplicates. Some use the old allowed flag.
+   */
+  private static char[] randomAcl(final Random rand,
+                                  final boolean sorted) throws Throwable {
+    final List<Ace> aces = new ArrayList<>();
+    final int n = rand.nextInt(6);
+
+    for (int i = 0; i < n; i++) {
+      final int whoType = rand.nextInt(whoTypeNamed.length);
+      final String who;
+      if (rand.nextInt(5) == 0) {
+        who = null;
+      } else {
+        who = names[rand.nextInt(names.length)];
+      }
+
+      final AceWho aw = AceWho.getAceWho(who, whoType, rand.nextInt(4) == 0);
+
+      final List<Privilege> privs = new ArrayList<>();
+      final int np = rand.nextInt(4);
+      for (int j = 0; j < np; j++) {
+        privs.add(Privileges.makePriv(rand.nextInt(privMaxType + 1),
+                                      rand.nextBoolean()));
+      }
+
+      final String inheritedFrom;
+      if (rand.nextInt(4) == 0) {
+        inheritedFrom = "/path";
+      } else {
+        inheritedFrom = null;
+      }
+
+      aces.add(Ace.makeAce(aw, privs, inheritedFrom));
+    }
+
+    final Collection<Ace> ordered;
+    if (sorted) {
+      final TreeMap<AceWho, Ace> tm = new TreeMap<>();
+      for (final Ace ace: aces) {
+        tm.put(ace.getWho(), ace);
+      }
+      ordered = tm.values();
+    } else {
+      ordered = aces;
+    }
+
+    final EncodedAcl eacl = new EncodedAcl();
+    eacl.startEncoding();
+    for (final Ace ace: ordered) {
+      ace.encode(eacl);
+    }
+
+    char[] chars = eacl.getEncoding();
+    if (chars == null) {
+      chars = new char[0];
+    }
+
+    if (rand.nextInt(8) == 0) {
+      for (int k = 0; k < chars.length; k++) {
+        if ((chars[k] == allowed) && rand.nextBoolean()) {
+          chars[k] = oldAllowed;
+          break;
+        }
+      }
+    }
+
+    return chars;
+  }
+}
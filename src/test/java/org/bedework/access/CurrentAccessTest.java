@@ -0,0 +1,44 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access;
+
+import junit.framework.TestCase;
+
+/** Check the acl of a CurrentAccess is only decoded when asked for. In this
+ * package as the acl fields are not public.
+ */
+public class CurrentAccessTest extends TestCase {
+  /** A bad acl fails the getter but not toString
+   *
+   * @throws Throwable on error
+   */
+  public void testUndecodedAcl() throws Throwable {
+    final CurrentAccess ca = new CurrentAccess(true);
+    ca.aclChars = "not an acl".toCharArray();
+
+    assertTrue(ca.toString().contains("not an acl"));
+    assertNull(ca.acl);
+
+    try {
+      ca.getAcl();
+      fail("Expected an AccessException");
+    } catch (final AccessException expected) {
+    }
+  }
+}
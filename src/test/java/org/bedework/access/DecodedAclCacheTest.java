@@ -0,0 +1,106 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access;
+
+import junit.framework.TestCase;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/** Check the shared characters of an acl outlive its decoding and that
+ * shared acls may be used on many threads. In this package as sharing is
+ * not public.
+ */
+public class DecodedAclCacheTest extends TestCase {
+  /** Decoding an acl which is already shared keeps the shared copy
+   *
+   * @throws Throwable on error
+   */
+  public void testShareThenDecode() throws Throwable {
+    DecodedAclCache.clear();
+
+    final char[] encoded =
+            new Acl(Collections.singletonList(
+                    Ace.makeAce(AceWho.other,
+                                Collections.singletonList(
+                                        Privileges.makePriv(
+                                                PrivilegeDefs.privRead)),
+                                null))).encode();
+    final long fingerprint = EncodedAcl.fingerprint(encoded);
+
+    final char[] shared = DecodedAclCache.share(CharBuffer.wrap(encoded),
+                                                fingerprint);
+    assertNotSame(encoded, shared);
+
+    final Acl acl = DecodedAclCache.decode(encoded.clone());
+
+    assertSame(acl, DecodedAclCache.decode(encoded));
+    assertSame(shared, DecodedAclCache.share(new String(encoded),
+                                             fingerprint));
+  }
+
+  /** A shared acl encodes the same on many threads at once
+   *
+   * @throws Throwable on error
+   */
+  public void testConcurrentEncode() throws Throwable {
+    final List<Ace> aces = new ArrayList<>();
+
+    for (int i = 0; i < 20; i++) {
+      aces.add(Ace.makeAce(AceWho.getAceWho("encuser" + i,
+                                            WhoDefs.whoTypeUser, false),
+                           Collections.singletonList(
+                                   Privileges.makePriv(
+                                           PrivilegeDefs.privRead)),
+                           null));
+    }
+
+    final char[] encoded = new Acl(aces).encode();
+    final Acl shared = DecodedAclCache.decode(encoded);
+    final long fingerprint = EncodedAcl.fingerprint(encoded);
+
+    final ExecutorService pool = Executors.newFixedThreadPool(4);
+    try {
+      final List<Future<Boolean>> results = new ArrayList<>();
+
+      for (int i = 0; i < 200; i++) {
+        results.add(pool.submit(() -> {
+          final boolean same = Arrays.equals(encoded, shared.encode()) &&
+                  (shared.getFingerprint() == fingerprint);
+          shared.toString();
+
+          return same;
+        }));
+      }
+
+      for (final Future<Boolean> f: results) {
+        assertTrue(f.get(10, TimeUnit.SECONDS));
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+}
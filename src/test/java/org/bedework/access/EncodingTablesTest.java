@@ -0,0 +1,95 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access;
+
+import junit.framework.TestCase;
+
+/** Check the lookup tables used when decoding against the definitions
+ * they are built from. In this package as the tables are not public.
+ */
+public class EncodingTablesTest extends TestCase
+        implements PrivilegeDefs, WhoDefs {
+  private static final char[] flags = {
+    allowed, denied, oldAllowed, oldDenied
+  };
+
+  /** The table finds what walking the privilege trees finds
+   *
+   * @throws Throwable on error
+   */
+  public void testPrivilegeTables() throws Throwable {
+    for (final char flag: flags) {
+      final boolean denial = (flag == denied) || (flag == oldDenied);
+
+      for (char c = 0; c < 128; c++) {
+        final EncodedAcl eacl = new EncodedAcl();
+        eacl.setEncoded(new char[]{flag, c});
+
+        final Privilege expected =
+                Privilege.findPriv(Privileges.getPrivAll(),
+                                   Privileges.makePriv(privNone), eacl);
+
+        assertSame("flag=" + flag + " char=" + (int)c,
+                   expected, Privileges.fromEncoding(c, denial));
+      }
+
+      assertNull(Privileges.fromEncoding('é', denial));
+    }
+
+    for (int i = 0; i <= privMaxType; i++) {
+      if (i == privNone) {
+        // Represented as denied all
+        continue;
+      }
+
+      final char c = privEncoding[i];
+
+      assertEquals(c, Privileges.makePriv(i).getEncoding());
+      assertEquals(c, Privileges.fromEncoding(c, false).getEncoding());
+      assertFalse(Privileges.fromEncoding(c, false).getDenial());
+
+      /* The denied tree is rooted at none so not every char is there */
+      final Privilege d = Privileges.fromEncoding(c, true);
+      if (d != null) {
+        assertEquals(c, d.getEncoding());
+        assertTrue(d.getDenial());
+      }
+    }
+  }
+
+  /** The who type table gives the lowest who type with each flag
+   *
+   */
+  public void testWhoTypeTable() {
+    for (char c = 0; c < 128; c++) {
+      int expected = -1;
+
+      for (int whoType = 0; whoType < whoTypeFlags.length; whoType++) {
+        if (whoTypeFlags[whoType] == c) {
+          expected = whoType;
+          break;
+        }
+      }
+
+      assertEquals("char=" + (int)c, expected, AceWho.whoTypeOf(c));
+    }
+
+    assertEquals(-1, AceWho.whoTypeOf('é'));
+  }
+}
@@ -0,0 +1,57 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access;
+
+import junit.framework.TestCase;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/** Check the keys of the evaluated access cache. In this package as the
+ * keys are not public.
+ */
+public class EvaluatedAccessCacheTest extends TestCase {
+  /** Distinct String versions give distinct keys in distinct buckets
+   *
+   * @throws Throwable on error
+   */
+  public void testVersionKeys() throws Throwable {
+    final String owner = "/principals/users/owner";
+    final String accessor = "/principals/users/accessor";
+    final int numVersions = 1000;
+
+    final Set<EvaluatedAccessCache.AccessKey> keys = new HashSet<>();
+    final Set<Integer> hashes = new HashSet<>();
+
+    for (int i = 0; i < numVersions; i++) {
+      final EvaluatedAccessCache.AccessKey key =
+              EvaluatedAccessCache.AccessKey.forVersion(owner, accessor,
+                                                        "ent1:v" + i);
+      keys.add(key);
+      hashes.add(key.hashCode());
+
+      assertEquals(key,
+                   EvaluatedAccessCache.AccessKey.forVersion(owner, accessor,
+                                                             "ent1:v" + i));
+    }
+
+    assertEquals(numVersions, keys.size());
+    assertEquals(numVersions, hashes.size());
+  }
+}
@@ -0,0 +1,188 @@
+/* ********************************************************************
+    Licensed to Jasig under one or more contributor license
+    agreements. See the NOTICE file distributed with this work
+    for additional information regarding copyright ownership.
+    Jasig licenses this file to you under the Apache License,
+    Version 2.0 (the "License"); you may not use this file
+    except in compliance with the License. You may obtain a
+    copy of the License at:
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing,
+    software distributed under the License is distributed on
+    an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+    KIND, either express or implied. See the License for the
+    specific language governing permissions and limitations
+    under the License.
+*/
+package org.bedework.access;
+
+import junit.framework.TestCase;
+
+/** Check the privilege set operations state by state.
+ */
+public class PrivilegeSetTest extends TestCase implements PrivilegeDefs {
+  /* Highest to lowest */
+  private static final char[] states = {
+    allowed, denied, allowedInherited, deniedInherited, unspecified
+  };
+
+  private static int rank(final char state) {
+    for (int i = 0; i < states.length; i++) {
+      if (states[i] == state) {
+        return i;
+      }
+    }
+
+    throw new IllegalArgumentException(String.valueOf(state));
+  }
+
+  /* Read in one state, write in another and everything else unspecified */
+  private static PrivilegeSet makeSet(final char readState,
+                                      final char writeState) {
+    final char[] ps = new char[privMaxType + 1];
+
+    for (int pi = 0; pi < ps.length; pi++) {
+      ps[pi] = unspecified;
+    }
+
+    ps[privRead] = readState;
+    ps[privWrite] = writeState;
+
+    return new PrivilegeSet(ps);
+  }
+
+  /** Merging keeps the higher state and modifies neither parameter
+   *
+   */
+  public void testMerge() {
+    for (final char cur: states) {
+      for (final char more: states) {
+        for (final boolean inherited: new boolean[]{false, true}) {
+          final PrivilegeSet current = makeSet(cur, unspecified);
+          final PrivilegeSet morePriv = makeSet(more, cur);
+          final String msg = cur + " + " + more + " inherited=" + inherited;
+
+          char m = more;
+          if (inherited) {
+            if (m == allowed) {
+              m = allowedInherited;
+            } else if (m == denied) {
+              m = deniedInherited;
+            }
+          }
+
+          final char expected = (rank(cur) <= rank(m)) ? cur : m;
+
+          final PrivilegeSet res =
+                  PrivilegeSet.mergePrivileges(current, morePriv, inherited);
+
+          assertEquals(msg, expected, res.getPrivilege(privRead));
+          assertEquals(msg, makeSet(cur, unspecified), current);
+          assertEquals(msg, makeSet(more, cur), morePriv);
+        }
+      }
+    }
+
+    final PrivilegeSet more = makeSet(allowed, denied);
+
+    assertSame(more, PrivilegeSet.mergePrivileges(null, more, false));
+    assertEquals(makeSet(allowedInherited, deniedInherited),
+                 PrivilegeSet.mergePrivileges(null, more, true));
+  }
+
+  /** The filter replaces our state where it is unspecified or where it
+   * denies something we allow.
+   *
+   */
+  public void testFilter() {
+    for (final char p: states) {
+      for (final char f: states) {
+        final boolean replace = (f == unspecified) ||
+                (((f == denied) || (f == deniedInherited)) &&
+                         ((p == allowed) || (p == allowedInherited)));
+
+        final PrivilegeSet res =
+                PrivilegeSet.filterPrivileges(makeSet(p, allowed),
+                                              makeSet(f, allowed));
+
+        assertEquals(p + " filtered by " + f,
+                     replace ? f : p, res.getPrivilege(privRead));
+        assertEquals(allowed, res.getPrivilege(privWrite));
+      }
+    }
+  }
+
+  /** Only unspecified states change
+   *
+   */
+  public void testSetUnspecified() {
+    for (final char s: states) {
+      for (final boolean isOwner: new boolean[]{false, true}) {
+        final char expected;
+
+        if (s != unspecified) {
+          expected = s;
+        } else if (isOwner) {
+          expected = allowed;
+        } else {
+          expected = denied;
+        }
+
+        final PrivilegeSet res =
+                PrivilegeSet.setUnspecified(makeSet(s, s), isOwner);
+
+        assertEquals(s + " isOwner=" + isOwner,
+                     expected, res.getPrivilege(privRead));
+        assertEquals(expected, res.getPrivilege(privWrite));
+      }
+    }
+  }
+
+  /** compareTo is antisymmetric and agrees with equals and hashCode
+   *
+   */
+  public void testCompareTo() {
+    for (final char r1: states) {
+      for (final char w1: states) {
+        for (final char r2: states) {
+          for (final char w2: states) {
+            final PrivilegeSet a = makeSet(r1, w1);
+            final PrivilegeSet b = makeSet(r2, w2);
+            final String msg = "" + r1 + w1 + " " + r2 + w2;
+            final boolean same = (r1 == r2) && (w1 == w2);
+
+            assertEquals(msg, Integer.signum(a.compareTo(b)),
+                         -Integer.signum(b.compareTo(a)));
+            assertEquals(msg, same, a.compareTo(b) == 0);
+            assertEquals(msg, same, a.equals(b));
+
+            if (same) {
+              assertEquals(msg, a.hashCode(), b.hashCode());
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /** A set built without states has every privilege unspecified
+   *
+   */
+  public void testNullStates() {
+    final PrivilegeSet ps = new PrivilegeSet((char[])null);
+    final char[] states = ps.getPrivileges();
+
+    assertEquals(privMaxType + 1, states.length);
+
+    for (final char s: states) {
+      assertEquals(unspecified, s);
+    }
+
+    assertEquals(makeSet(unspecified, unspecified), ps);
+    for (final char s: PrivilegeSet.setUnspecified(ps, false).getPrivileges()) {
+      assertEquals(denied, s);
+    }
+  }
+}
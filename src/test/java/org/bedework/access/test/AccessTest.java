@@ -18,20 +18,46 @@
 */
 package org.bedework.access.test;
 
+import org.bedework.access.Access;
 import org.bedework.access.Access.AccessCb;
+import org.bedework.access.Access.AccessStatsEntry;
 import org.bedework.access.AccessException;
+import org.bedework.access.AccessFilter;
+import org.bedework.access.AccessFilterProcessor;
 import org.bedework.access.Ace;
 import org.bedework.access.AceWho;
 import org.bedework.access.Acl;
+import org.bedework.access.AclDictionary;
+import org.bedework.access.BinaryAcl;
 import org.bedework.access.CurrentAccess;
+import org.bedework.access.DecodedAclCache;
+import org.bedework.access.EncodedAcl;
 import org.bedework.access.EvaluatedAccessCache;
 import org.bedework.access.Privilege;
+import org.bedework.access.PrivilegeSet;
 import org.bedework.access.Privileges;
+import org.bedework.access.WhoDefs;
 
 import junit.framework.TestCase;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /** Test the access classes
  *
@@ -193,6 +219,1096 @@ public class AccessTest extends TestCase {
     }
   }
 
+  /**
+   *
+   */
+  public void testInheritedAces() {
+    try {
+      Collection<Ace> aces = new ArrayList<Ace>();
+      aces.add(Ace.makeAce(AceWho.all, readPrivs(), null));
+
+      Collection<Privilege> noPrivs = new ArrayList<Privilege>();
+      noPrivs.add(Privileges.makePriv(Privileges.privNone));
+      aces.add(Ace.makeAce(AceWho.unauthenticated, noPrivs, null));
+
+      char[] encoded = new Acl(aces).encode();
+
+      /* Aces decoded with a path inherit from it and come from the cache
+       * the second time round */
+      Collection<Ace> inherited = Acl.decode(encoded, "/a/path").getAces();
+      for (Ace ace: inherited) {
+        assertEquals("Inherited from", "/a/path", ace.getInheritedFrom());
+      }
+      assertEquals("Cached inherited aces", new ArrayList<>(inherited),
+                   new ArrayList<>(Acl.decode(encoded, "/a/path").getAces()));
+      for (Ace ace: Acl.decode(encoded).getAces()) {
+        assertNull("Not inherited", ace.getInheritedFrom());
+      }
+    } catch (Throwable t) {
+      t.printStackTrace();
+      fail("Exception testing access: " + t.getMessage());
+    }
+  }
+
+  /**
+   *
+   */
+  public void testCacheEviction() {
+    int saveMax = EvaluatedAccessCache.getMaxEntries();
+
+    try {
+      User owner = new User("evictowner");
+
+      Collection<Privilege> readPrivs = new ArrayList<Privilege>();
+      readPrivs.add(Privileges.makePriv(Privileges.privRead));
+
+      Collection<Ace> aces = new ArrayList<Ace>();
+      aces.add(Ace.makeAce(AceWho.other, readPrivs, null));
+
+      char[] encoded = new Acl(aces).encode();
+
+      EvaluatedAccessCache.clear();
+      EvaluatedAccessCache.setMaxEntries(5);
+
+      for (int i = 0; i < 20; i++) {
+        tryEvaluateAccess(new User("evictuser" + i), owner, privSetRead(),
+                          encoded, true, "Evict user " + i);
+      }
+
+      assertTrue("Cache exceeded limit",
+                 statValue("Access cache entries") <= 5);
+      assertTrue("No evictions counted",
+                 statValue("Access cache evicted entries") >= 15);
+    } catch (Throwable t) {
+      t.printStackTrace();
+      fail("Exception testing access: " + t.getMessage());
+    } finally {
+      EvaluatedAccessCache.setMaxEntries(saveMax);
+    }
+  }
+
+  /**
+   *
+   */
+  public void testConcurrentCache() {
+    int saveMax = EvaluatedAccessCache.getMaxEntries();
+
+    try {
+      final User owner = new User("concurrentowner");
+
+      Collection<Privilege> readPrivs = new ArrayList<Privilege>();
+      readPrivs.add(Privileges.makePriv(Privileges.privRead));
+
+      Collection<Ace> aces = new ArrayList<Ace>();
+      aces.add(Ace.makeAce(AceWho.getAceWho("concurrentuser0",
+                                            Ace.whoTypeUser, false),
+                           readPrivs, null));
+      final char[] encoded = new Acl(aces).encode();
+
+      EvaluatedAccessCache.clear();
+      EvaluatedAccessCache.setMaxEntries(10);
+
+      final Access access = new Access();
+      final TestAccessCb cb = new TestAccessCb();
+      final List<Throwable> failures =
+              Collections.synchronizedList(new ArrayList<Throwable>());
+      Thread[] threads = new Thread[8];
+
+      for (int t = 0; t < threads.length; t++) {
+        threads[t] = new Thread(() -> {
+          try {
+            for (int i = 0; i < 2000; i++) {
+              int u = i % 25;
+              boolean allowed =
+                      access.checkRead(cb, new User("concurrentuser" + u),
+                                       owner, encoded, null)
+                            .getAccessAllowed();
+              if (allowed != (u == 0)) {
+                throw new AssertionError("Wrong access for user " + u);
+              }
+            }
+          } catch (Throwable th) {
+            failures.add(th);
+          }
+        });
+        threads[t].start();
+      }
+
+      for (Thread thread: threads) {
+        thread.join();
+      }
+
+      assertTrue("Failures: " + failures, failures.isEmpty());
+
+      /* Trimming under the lock gets us to the limit and the count stays
+       * exact however puts and trims were interleaved
+       */
+      EvaluatedAccessCache.setMaxEntries(10);
+      assertTrue("Cache exceeded limit",
+                 statValue("Access cache entries") <= 10);
+      EvaluatedAccessCache.clear();
+      assertEquals(0, statValue("Access cache entries"));
+    } catch (Throwable t) {
+      t.printStackTrace();
+      fail("Exception testing access: " + t.getMessage());
+    } finally {
+      EvaluatedAccessCache.setMaxEntries(saveMax);
+    }
+  }
+
+  /**
+   *
+   */
+  public void testFlushHrefs() {
+    try {
+      User owner = new User("flushowner");
+      User auser = new User("flushuser");
+
+      final String[] root = {"/principals/users/"};
+      AccessCb cb = new AccessCb() {
+        public String makeHref(String id, int whoType) {
+          return root[0] + id;
+        }
+      };
+
+      Collection<Privilege> readPrivs = new ArrayList<Privilege>();
+      readPrivs.add(Privileges.makePriv(Privileges.privRead));
+
+      Collection<Ace> aces = new ArrayList<Ace>();
+      aces.add(Ace.makeAce(AceWho.getAceWho("flushuser", Ace.whoTypeUser,
+                                            false),
+                           readPrivs, null));
+      char[] encoded = new Acl(aces).encode();
+
+      Access access = new Access();
+
+      assertTrue(access.checkRead(cb, auser, owner, encoded, null)
+                       .getAccessAllowed());
+
+      /* The principal roots move - remembered hrefs and results are stale
+       * until flushed
+       */
+      root[0] = "/principals/people/";
+      assertTrue(access.checkRead(cb, auser, owner, encoded, null)
+                       .getAccessAllowed());
+
+      AceWho.flushHrefs();
+      assertFalse(access.checkRead(cb, auser, owner, encoded, null)
+                        .getAccessAllowed());
+
+      User moved = new User("flushuser");
+      moved.setPrincipalRef("/principals/people/flushuser");
+      assertTrue(access.checkRead(cb, moved, owner, encoded, null)
+                       .getAccessAllowed());
+
+      /* Batches use the href index of the plan */
+      List<char[]> acls = new ArrayList<char[]>();
+      acls.add(encoded);
+      assertTrue(access.evaluateAccess(cb, moved, owner, privSetRead(),
+                                       acls, null)[0].getAccessAllowed());
+      root[0] = "/principals/users/";
+      AceWho.flushHrefs();
+      assertFalse(access.evaluateAccess(cb, moved, owner, privSetRead(),
+                                        acls, null)[0].getAccessAllowed());
+      assertTrue(access.evaluateAccess(cb, auser, owner, privSetRead(),
+                                       acls, null)[0].getAccessAllowed());
+    } catch (Throwable t) {
+      t.printStackTrace();
+      fail("Exception testing access: " + t.getMessage());
+    }
+  }
+
+  /**
+   *
+   */
+  public void testSharedCacheEntry() {
+    try {
+      User owner = new User("sharedowner");
+      User auser = new User("shareduser");
+      char[] encoded = readableAcl();
+      Access access = new Access();
+
+      EvaluatedAccessCache.clear();
+      long misses = statValue("Access cache misses");
+
+      assertTrue(access.checkRead(new TestAccessCb(), auser, owner,
+                                  encoded, null).getAccessAllowed());
+      assertFalse(access.checkReadWrite(new TestAccessCb(), auser, owner,
+                                        encoded, null).getAccessAllowed());
+      assertTrue(access.checkAny(new TestAccessCb(), auser, owner,
+                                 encoded, null).getAccessAllowed());
+      assertFalse(access.checkRead(new TestAccessCb(), auser, owner,
+                                   encoded,
+                                   PrivilegeSet.makeDefaultNonOwnerPrivileges())
+                        .getAccessAllowed());
+
+      assertEquals("Expected a single evaluation",
+                   1, statValue("Access cache misses") - misses);
+    } catch (Throwable t) {
+      t.printStackTrace();
+      fail("Exception testing access: " + t.getMessage());
+    }
+  }
+
+  /**
+   *
+   */
+  public void testAclForms() {
+    try {
+      User owner = new User("formsowner");
+      User auser = new User("formsuser");
+      char[] encoded = readableAcl();
+      Access access = new Access();
+
+      EvaluatedAccessCache.clear();
+      long misses = statValue("Access cache misses");
+
+      assertTrue(access.checkRead(new TestAccessCb(), auser, owner,
+                                  encoded, null).getAccessAllowed());
+
+      /* The same acl in other forms should hit the same entry */
+      String aclStr = new String(encoded);
+      char[] padded = ("xx" + aclStr + "yy").toCharArray();
+      ByteBuffer bytes = ByteBuffer.wrap(("zzz" + aclStr).getBytes("US-ASCII"));
+
+      assertTrue(access.evaluateAccess(new TestAccessCb(), auser, owner,
+                                       privSetRead(), aclStr, null)
+                       .getAccessAllowed());
+      assertTrue(access.evaluateAccess(new TestAccessCb(), auser, owner,
+                                       privSetRead(),
+                                       CharBuffer.wrap(padded, 2,
+                                                       aclStr.length()),
+                                       null)
+                       .getAccessAllowed());
+      assertTrue(access.evaluateAccess(new TestAccessCb(), auser, owner,
+                                       privSetRead(), bytes, 3,
+                                       aclStr.length(), null)
+                       .getAccessAllowed());
+
+      assertEquals("Expected a single evaluation",
+                   1, statValue("Access cache misses") - misses);
+    } catch (Throwable t) {
+      t.printStackTrace();
+      fail("Exception testing access: " + t.getMessage());
+    }
+  }
+
+  /**
+   *
+   */
+  public void testAclFingerprint() {
+    try {
+      User owner = new User("fingerprintowner");
+      User auser = new User("fingerprintuser");
+
+      Collection<Ace> aces = new ArrayList<Ace>();
+      aces.add(Ace.makeAce(AceWho.other, readPrivs(), null));
+
+      Acl acl = new Acl(aces);
+      char[] encoded = acl.encode();
+      long fingerprint = acl.getFingerprint();
+      Access access = new Access();
+
+      assertEquals(EncodedAcl.fingerprint(new String(encoded)), fingerprint);
+
+      EvaluatedAccessCache.clear();
+      long misses = statValue("Access cache misses");
+
+      assertTrue(access.checkRead(new TestAccessCb(), auser, owner,
+                                  encoded, null).getAccessAllowed());
+      assertTrue(access.evaluateAccessByFingerprint(new TestAccessCb(),
+                                                    auser, owner,
+                                                    privSetRead(), encoded,
+                                                    fingerprint, null)
+                       .getAccessAllowed());
+
+      assertEquals("Expected a single evaluation",
+                   1, statValue("Access cache misses") - misses);
+    } catch (Throwable t) {
+      t.printStackTrace();
+      fail("Exception testing access: " + t.getMessage());
+    }
+  }
+
+  /**
+   *
+   */
+  public void testBinaryCacheEntry() {
+    try {
+      User owner = new User("binentryowner");
+      User auser = new User("binentryuser");
+      char[] encoded = readableAcl();
+      String aclStr = new String(encoded);
+      Access access = new Access();
+
+      /* The binary form converts back exactly and evaluates the same */
+      byte[] bin = BinaryAcl.fromChars(encoded);
+      assertTrue(BinaryAcl.isBinary(bin));
+      assertTrue(Arrays.equals(encoded, BinaryAcl.toChars(bin)));
+
+      CurrentAccess binCa = access.evaluateAccess(new TestAccessCb(), auser,
+                                                  owner, privSetRead(), bin,
+                                                  null);
+      assertTrue(binCa.getAccessAllowed());
+      assertEquals(aclStr, new String(binCa.getAcl().encode()));
+      assertFalse(access.evaluateAccess(new TestAccessCb(), auser, owner,
+                                        new Privilege[]{
+                                                Privileges.makePriv(Privileges.privRead),
+                                                Privileges.makePriv(Privileges.privWrite)},
+                                        bin, null)
+                        .getAccessAllowed());
+      assertTrue(access.evaluateAccess(new TestAccessCb(), auser, owner,
+                                       privSetRead(),
+                                       aclStr.getBytes("UTF-8"), null)
+                       .getAccessAllowed());
+    } catch (Throwable t) {
+      t.printStackTrace();
+      fail("Exception testing access: " + t.getMessage());
+    }
+  }
+
+  /**
+   *
+   */
+  public void testAclDictionary() {
+    try {
+      User owner = new User("dictowner");
+      User auser = new User("dictuser");
+      char[] encoded = readableAcl();
+      String aclStr = new String(encoded);
+      Access access = new Access();
+
+      /* Acls in a dictionary are evaluated and cached by id */
+      AclDictionary dict = new AclDictionary();
+      int id = dict.intern(encoded);
+      assertEquals(id, dict.intern(aclStr.toCharArray()));
+      assertEquals(id, dict.getId(encoded));
+      assertEquals(-1, dict.getId("x".toCharArray()));
+      assertEquals(EncodedAcl.fingerprint(aclStr), dict.getFingerprint(id));
+
+      EvaluatedAccessCache.clear();
+      long misses = statValue("Access cache misses");
+      for (int i = 0; i < 3; i++) {
+        assertTrue(access.evaluateAccess(new TestAccessCb(), auser, owner,
+                                         privSetRead(), dict, id, null)
+                         .getAccessAllowed());
+      }
+      assertEquals("Expected a single evaluation",
+                   1, statValue("Access cache misses") - misses);
+
+      AclDictionary reloaded = new AclDictionary();
+      reloaded.put(5, encoded);
+      assertEquals(5, reloaded.getId(encoded));
+      assertEquals(0, reloaded.intern("x".toCharArray()));
+      try {
+        reloaded.put(6, encoded);
+        fail("Expected an exception for a second id");
+      } catch (AccessException expected) {
+      }
+    } catch (Throwable t) {
+      t.printStackTrace();
+      fail("Exception testing access: " + t.getMessage());
+    }
+  }
+
+  /**
+   *
+   */
+  public void testAclVersion() {
+    try {
+      User owner = new User("versionowner");
+      User auser = new User("versionuser");
+      char[] encoded = readableAcl();
+      Access access = new Access();
+
+      /* Acls with a version key are evaluated once per key */
+      EvaluatedAccessCache.clear();
+      long misses = statValue("Access cache misses");
+      for (int i = 0; i < 3; i++) {
+        assertTrue(access.evaluateAccessByVersion(new TestAccessCb(),
+                                                  auser, owner,
+                                                  privSetRead(), "ent1", 42L,
+                                                  encoded, null)
+                         .getAccessAllowed());
+        assertTrue(access.evaluateAccessByVersion(new TestAccessCb(),
+                                                  auser, owner,
+                                                  privSetRead(), "ent1:v7",
+                                                  encoded, null)
+                         .getAccessAllowed());
+      }
+      assertEquals("Expected one evaluation per key",
+                   2, statValue("Access cache misses") - misses);
+
+      /* Another entity at the same version has its own acl */
+      Collection<Ace> noAces = new ArrayList<Ace>();
+      noAces.add(Ace.makeAce(AceWho.other,
+                             Collections.singletonList(
+                                     Privileges.makePriv(Privileges.privRead,
+                                                         true)),
+                             null));
+      char[] notReadable = new Acl(noAces).encode();
+      assertFalse(access.evaluateAccessByVersion(new TestAccessCb(),
+                                                 auser, owner,
+                                                 privSetRead(), "ent2", 42L,
+                                                 notReadable, null)
+                        .getAccessAllowed());
+      assertTrue(access.evaluateAccessByVersion(new TestAccessCb(),
+                                                auser, owner,
+                                                privSetRead(), "ent1", 42L,
+                                                encoded, null)
+                       .getAccessAllowed());
+    } catch (Throwable t) {
+      t.printStackTrace();
+      fail("Exception testing access: " + t.getMessage());
+    }
+  }
+
+  /**
+   *
+   */
+  public void testDecodedAclCache() {
+    try {
+      char[] encoded = readableAcl();
+      String aclStr = new String(encoded);
+
+      /* Decoded acls are shared */
+      Acl decoded = DecodedAclCache.decode(encoded);
+      assertSame(decoded, DecodedAclCache.decode(aclStr.toCharArray()));
+      assertEquals(aclStr, new String(decoded.encode()));
+    } catch (Throwable t) {
+      t.printStackTrace();
+      fail("Exception testing access: " + t.getMessage());
+    }
+  }
+
+  /**
+   *
+   */
+  public void testLazyAcl() {
+    try {
+      User owner = new User("lazyowner");
+      char[] encoded = readableAcl();
+      Access access = new Access();
+
+      /* Evaluated access hands out the shared decoded acl */
+      Acl decoded = DecodedAclCache.decode(encoded);
+      assertSame(decoded,
+                 access.checkRead(new TestAccessCb(), new User("lazyuser"),
+                                  owner, encoded.clone(), null)
+                       .getAcl());
+    } catch (Throwable t) {
+      t.printStackTrace();
+      fail("Exception testing access: " + t.getMessage());
+    }
+  }
+
+  /**
+   *
+   */
+  public void testBatch() {
+    try {
+      User owner = new User("batchowner");
+      User auser = new User("batchuser");
+      char[] readable = readableAcl();
+      char[] notReadable = notReadableAcl();
+
+      List<char[]> acls = new ArrayList<char[]>();
+      acls.add(readable);
+      acls.add(notReadable);
+      acls.add(readable);
+
+      Access access = new Access();
+      CurrentAccess[] cas = access.evaluateAccess(new TestAccessCb(),
+                                                  auser, owner,
+                                                  privSetRead(), acls, null);
+      assertEquals(3, cas.length);
+      for (int i = 0; i < cas.length; i++) {
+        assertEquals("Acl " + i,
+                     access.checkRead(new TestAccessCb(), auser, owner,
+                                      acls.get(i), null).getAccessAllowed(),
+                     cas[i].getAccessAllowed());
+      }
+
+      BitSet allowed = access.accessAllowed(new TestAccessCb(), auser, owner,
+                                            privSetRead(), acls, null);
+      assertTrue(allowed.get(0));
+      assertFalse(allowed.get(1));
+      assertTrue(allowed.get(2));
+    } catch (Throwable t) {
+      t.printStackTrace();
+      fail("Exception testing access: " + t.getMessage());
+    }
+  }
+
+  /**
+   *
+   */
+  public void testBatchPrincipals() {
+    try {
+      User owner = new User("batchowner");
+      User auser = new User("batchuser");
+      Access access = new Access();
+
+      List<User> whos = new ArrayList<User>();
+      whos.add(auser);
+      whos.add(new User("someoneelse"));
+      whos.add(owner);
+
+      BitSet allowed = access.accessAllowed(new TestAccessCb(), whos, owner,
+                                            privSetRead(), notReadableAcl(),
+                                            null);
+      assertFalse(allowed.get(0));
+      assertTrue(allowed.get(1));
+      assertTrue(allowed.get(2));
+    } catch (Throwable t) {
+      t.printStackTrace();
+      fail("Exception testing access: " + t.getMessage());
+    }
+  }
+
+  /**
+   *
+   */
+  public void testParallelBatch() {
+    try {
+      User owner = new User("batchowner");
+      User auser = new User("batchuser");
+      List<char[]> manyAcls = manyAcls();
+      Access access = new Access();
+
+      CurrentAccess[] cas = access.evaluateAccess(new TestAccessCb(), auser,
+                                                  owner, privSetRead(),
+                                                  manyAcls, null,
+                                                  ForkJoinPool.commonPool());
+      assertEquals(manyAcls.size(), cas.length);
+      for (int i = 0; i < cas.length; i++) {
+        assertEquals("Acl " + i, i % 3 != 1, cas[i].getAccessAllowed());
+      }
+    } catch (Throwable t) {
+      t.printStackTrace();
+      fail("Exception testing access: " + t.getMessage());
+    }
+  }
+
+  /**
+   *
+   */
+  public void testAccessFilter() {
+    try {
+      final User owner = new User("batchowner");
+      User auser = new User("batchuser");
+      final List<char[]> manyAcls = manyAcls();
+      char[] readable = manyAcls.get(0);
+
+      List<char[]> readableAcls =
+              AccessFilter.filter(manyAcls.stream(), new TestAccessCb(),
+                                  auser, privSetRead(), null,
+                                  acl -> owner, acl -> acl)
+                          .collect(Collectors.toList());
+      assertEquals(333, readableAcls.size());
+      for (char[] acl: readableAcls) {
+        assertSame(readable, acl);
+      }
+
+      assertEquals(333,
+                   AccessFilter.filter(manyAcls.parallelStream(),
+                                       new TestAccessCb(),
+                                       auser, privSetRead(), null,
+                                       acl -> owner, acl -> acl)
+                               .count());
+
+      /* Nothing is held back so we can still split after traversal starts
+       * and the split comes ahead of the rest
+       */
+      Spliterator<Integer> sp =
+              AccessFilter.filter(IntStream.range(0, manyAcls.size())
+                                           .boxed()
+                                           .collect(Collectors.toList())
+                                           .stream(),
+                                  new TestAccessCb(),
+                                  auser, privSetRead(), null,
+                                  i -> owner, manyAcls::get)
+                          .spliterator();
+      List<Integer> readableIndexes = new ArrayList<Integer>();
+      assertTrue(sp.tryAdvance(readableIndexes::add));
+      Spliterator<Integer> prefix = sp.trySplit();
+      assertNotNull(prefix);
+      prefix.forEachRemaining(readableIndexes::add);
+      sp.forEachRemaining(readableIndexes::add);
+      assertEquals(333, readableIndexes.size());
+      for (int i = 1; i < readableIndexes.size(); i++) {
+        assertTrue(readableIndexes.get(i - 1) < readableIndexes.get(i));
+      }
+    } catch (Throwable t) {
+      t.printStackTrace();
+      fail("Exception testing access: " + t.getMessage());
+    }
+  }
+
+  /**
+   *
+   */
+  public void testAccessFilterProcessor() {
+    try {
+      final User owner = new User("batchowner");
+      User auser = new User("batchuser");
+      final List<char[]> manyAcls = manyAcls();
+      char[] readable = manyAcls.get(0);
+
+      AccessFilterProcessor<char[]> processor =
+              new AccessFilterProcessor<char[]>(new TestAccessCb(), auser,
+                                                privSetRead(), null,
+                                                acl -> owner, acl -> acl,
+                                                ForkJoinPool.commonPool(),
+                                                16);
+      SubmissionPublisher<char[]> source = new SubmissionPublisher<char[]>();
+      source.subscribe(processor);
+      CompletableFuture<List<char[]>> done = collect(processor);
+      for (char[] acl: manyAcls) {
+        source.submit(acl);
+      }
+      source.close();
+      assertEquals(333, done.get(10, TimeUnit.SECONDS).size());
+
+      /* Items with no owner are dropped without disturbing the others */
+      AccessFilterProcessor<Integer> someOwned =
+              new AccessFilterProcessor<Integer>(new TestAccessCb(), auser,
+                                                 privSetRead(), null,
+                                                 i -> (i % 4 == 0) ? null : owner,
+                                                 manyAcls::get,
+                                                 ForkJoinPool.commonPool(),
+                                                 16);
+      SubmissionPublisher<Integer> indexSource =
+              new SubmissionPublisher<Integer>();
+      indexSource.subscribe(someOwned);
+      CompletableFuture<List<Integer>> ownedDone = collect(someOwned);
+      for (int i = 0; i < manyAcls.size(); i++) {
+        indexSource.submit(i);
+      }
+      indexSource.close();
+      List<Integer> owned = ownedDone.get(10, TimeUnit.SECONDS);
+      for (int i = 0; i < manyAcls.size(); i++) {
+        assertEquals("Item " + i, (i % 4 != 0) && (i % 3 != 1),
+                     owned.contains(i));
+      }
+
+      /* Batches larger than the subscriber buffer on one thread */
+      ExecutorService single = Executors.newSingleThreadExecutor();
+      try {
+        AccessFilterProcessor<char[]> bigBatches =
+                new AccessFilterProcessor<char[]>(new TestAccessCb(), auser,
+                                                  privSetRead(), null,
+                                                  acl -> owner, acl -> acl,
+                                                  single, 1000);
+        source = new SubmissionPublisher<char[]>();
+        source.subscribe(bigBatches);
+        done = collect(bigBatches);
+        for (int i = 0; i < 2000; i++) {
+          source.submit(readable);
+        }
+        source.close();
+        assertEquals(2000, done.get(10, TimeUnit.SECONDS).size());
+      } finally {
+        single.shutdownNow();
+      }
+    } catch (Throwable t) {
+      t.printStackTrace();
+      fail("Exception testing access: " + t.getMessage());
+    }
+  }
+
+  /**
+   *
+   */
+  public void testAsyncEvaluation() {
+    try {
+      final User owner = new User("batchowner");
+      User auser = new User("batchuser");
+      char[] notReadable = notReadableAcl();
+      List<char[]> manyAcls = manyAcls();
+      Access access = new Access();
+
+      Access.AsyncAccessCb asyncCb = new Access.AsyncAccessCb() {
+        final TestAccessCb cb = new TestAccessCb();
+
+        public CompletableFuture<String> makeHref(final String id,
+                                                  final int whoType) {
+          return CompletableFuture.supplyAsync(() -> {
+            try {
+              return cb.makeHref(id, whoType);
+            } catch (AccessException ae) {
+              throw new RuntimeException(ae);
+            }
+          });
+        }
+      };
+
+      EvaluatedAccessCache.clear();
+      User other = new User("someoneelse");
+      assertTrue(access.evaluateAccessAsync(asyncCb, other, owner,
+                                            privSetRead(), notReadable, null)
+                       .get(10, TimeUnit.SECONDS).getAccessAllowed());
+      assertFalse(access.evaluateAccessAsync(asyncCb, auser, owner,
+                                             privSetRead(), notReadable, null)
+                        .get(10, TimeUnit.SECONDS).getAccessAllowed());
+
+      CompletableFuture<CurrentAccess> hit =
+              access.evaluateAccessAsync(asyncCb, other, owner,
+                                         privSetRead(), notReadable, null);
+      assertTrue("Expected a cache hit", hit.isDone());
+      assertTrue(hit.get().getAccessAllowed());
+
+      AccessFilterProcessor<char[]> asyncProcessor =
+              new AccessFilterProcessor<char[]>(asyncCb, auser,
+                                                privSetRead(), null,
+                                                acl -> owner, acl -> acl,
+                                                ForkJoinPool.commonPool(),
+                                                16);
+      SubmissionPublisher<char[]> source = new SubmissionPublisher<char[]>();
+      source.subscribe(asyncProcessor);
+      CompletableFuture<List<char[]>> done = collect(asyncProcessor);
+      for (char[] acl: manyAcls) {
+        source.submit(acl);
+      }
+      source.close();
+      assertEquals(333, done.get(10, TimeUnit.SECONDS).size());
+    } catch (Throwable t) {
+      t.printStackTrace();
+      fail("Exception testing access: " + t.getMessage());
+    }
+  }
+
+  /**
+   *
+   */
+  public void testCoalescedMisses() {
+    try {
+      User owner = new User("batchowner");
+      User auser = new User("batchuser");
+      char[] notReadable = notReadableAcl();
+      Access access = new Access();
+
+      /* A second miss while the first is resolving should wait for it */
+      final CompletableFuture<String> slowHref = new CompletableFuture<String>();
+      Access.AsyncAccessCb slowCb = new Access.AsyncAccessCb() {
+        public CompletableFuture<String> makeHref(final String id,
+                                                  final int whoType) {
+          return slowHref;
+        }
+      };
+
+      EvaluatedAccessCache.clear();
+      long coalesced = statValue("Access cache coalesced misses");
+      CompletableFuture<CurrentAccess> first =
+              access.evaluateAccessAsync(slowCb, auser, owner,
+                                         privSetRead(), notReadable, null);
+      CompletableFuture<CurrentAccess> second =
+              access.evaluateAccessAsync(slowCb, auser, owner,
+                                         privSetRead(), notReadable, null);
+      assertEquals(1, statValue("Access cache coalesced misses") - coalesced);
+      slowHref.complete("/principals/users/someoneelse");
+      assertFalse(first.get(10, TimeUnit.SECONDS).getAccessAllowed());
+      assertFalse(second.get(10, TimeUnit.SECONDS).getAccessAllowed());
+    } catch (Throwable t) {
+      t.printStackTrace();
+      fail("Exception testing access: " + t.getMessage());
+    }
+  }
+
+  /**
+   *
+   */
+  public void testAsyncCallbackFailure() {
+    try {
+      User owner = new User("asyncfailowner");
+      User auser = new User("asyncfailuser");
+
+      Collection<Privilege> readPrivs = new ArrayList<Privilege>();
+      readPrivs.add(Privileges.makePriv(Privileges.privRead));
+
+      Collection<Ace> aces = new ArrayList<Ace>();
+      aces.add(Ace.makeAce(AceWho.getAceWho("asyncfailother",
+                                            WhoDefs.whoTypeUser, false),
+                           readPrivs, null));
+      char[] encoded = new Acl(aces).encode();
+
+      Access.AsyncAccessCb throwingCb = new Access.AsyncAccessCb() {
+        public CompletableFuture<String> makeHref(final String id,
+                                                  final int whoType) {
+          throw new IllegalStateException("No hrefs today");
+        }
+      };
+
+      Access access = new Access();
+      EvaluatedAccessCache.clear();
+
+      CompletableFuture<CurrentAccess> failed =
+              access.evaluateAccessAsync(throwingCb, auser, owner,
+                                         privSetRead(), encoded, null);
+      assertTrue(failed.isCompletedExceptionally());
+
+      /* The failure must not leave the key in flight */
+      assertFalse(access.checkRead(new TestAccessCb(), auser, owner,
+                                   encoded, null).getAccessAllowed());
+
+      EvaluatedAccessCache.clear();
+      failed = access.evaluateAccessAsync(throwingCb, auser, owner,
+                                          privSetRead(), encoded, null);
+      assertTrue(failed.isCompletedExceptionally());
+
+      Access.AsyncAccessCb asyncCb = new Access.AsyncAccessCb() {
+        public CompletableFuture<String> makeHref(final String id,
+                                                  final int whoType) {
+          return CompletableFuture.completedFuture(
+                  "/principals/users/" + id);
+        }
+      };
+
+      assertFalse(access.evaluateAccessAsync(asyncCb, auser, owner,
+                                             privSetRead(), encoded, null)
+                        .get(10, TimeUnit.SECONDS).getAccessAllowed());
+    } catch (Throwable t) {
+      t.printStackTrace();
+      fail("Exception testing access: " + t.getMessage());
+    }
+  }
+
+  /**
+   *
+   */
+  public void testAsyncFlushHrefs() {
+    try {
+      User owner = new User("asyncflushowner");
+      User auser = new User("asyncflushuser");
+
+      Collection<Privilege> readPrivs = new ArrayList<Privilege>();
+      readPrivs.add(Privileges.makePriv(Privileges.privRead));
+
+      AceWho first = AceWho.getAceWho("asyncflushfirst",
+                                      WhoDefs.whoTypeUser, false);
+      AceWho second = AceWho.getAceWho("asyncflushuser",
+                                       WhoDefs.whoTypeUser, false);
+
+      Collection<Ace> aces = new ArrayList<Ace>();
+      aces.add(Ace.makeAce(first, readPrivs, null));
+      char[] firstOnly = new Acl(aces).encode();
+
+      aces.add(Ace.makeAce(second, readPrivs, null));
+      char[] both = new Acl(aces).encode();
+
+      final CompletableFuture<String> secondHref =
+              new CompletableFuture<String>();
+      final List<String> requested = new ArrayList<String>();
+
+      Access.AsyncAccessCb asyncCb = new Access.AsyncAccessCb() {
+        public CompletableFuture<String> makeHref(final String id,
+                                                  final int whoType) {
+          synchronized (requested) {
+            requested.add(id);
+          }
+
+          if (id.equals("asyncflushuser") && !secondHref.isDone()) {
+            return secondHref;
+          }
+
+          return CompletableFuture.completedFuture(
+                  "/principals/users/" + id);
+        }
+      };
+
+      Access access = new Access();
+      EvaluatedAccessCache.clear();
+
+      /* Remember the href of the first ace */
+      assertFalse(access.evaluateAccessAsync(asyncCb, auser, owner,
+                                             privSetRead(), firstOnly, null)
+                        .get(10, TimeUnit.SECONDS).getAccessAllowed());
+
+      requested.clear();
+      CompletableFuture<CurrentAccess> ca =
+              access.evaluateAccessAsync(asyncCb, auser, owner,
+                                         privSetRead(), both, null);
+      assertEquals(Collections.singletonList("asyncflushuser"), requested);
+
+      /* The remembered href goes while we wait for the other */
+      AceWho.flushHrefs();
+      secondHref.complete("/principals/users/asyncflushuser");
+
+      assertTrue(ca.get(10, TimeUnit.SECONDS).getAccessAllowed());
+      assertTrue(requested.contains("asyncflushfirst"));
+    } catch (Throwable t) {
+      t.printStackTrace();
+      fail("Exception testing access: " + t.getMessage());
+    }
+  }
+
+  public void testLargeAcl() {
+    try {
+      User owner = new User("largeowner");
+
+      Collection<Privilege> readPrivs = new ArrayList<Privilege>();
+      readPrivs.add(Privileges.makePriv(Privileges.privRead));
+
+      Collection<Privilege> writePrivs = new ArrayList<Privilege>();
+      writePrivs.add(Privileges.makePriv(Privileges.privWriteContent));
+
+      Collection<Ace> aces = new ArrayList<Ace>();
+
+      for (int i = 0; i < 50; i++) {
+        aces.add(Ace.makeAce(AceWho.getAceWho("largeuser" + i,
+                                              Ace.whoTypeUser,
+                                              false),
+                             writePrivs, null));
+        aces.add(Ace.makeAce(AceWho.getAceWho("largegroup" + i,
+                                              Ace.whoTypeGroup,
+                                              false),
+                             readPrivs, null));
+      }
+
+      char[] encoded = new Acl(aces).encode();
+
+      User named = new User("largeuser7");
+      User inGroup = new User("largeingroup");
+      inGroup.addGroup(new Group("nogroup"));
+      inGroup.addGroup(new Group("largegroup42"));
+      User outsider = new User("largeoutsider");
+      outsider.addGroup(new Group("nogroup"));
+
+      Privilege[] privSetWriteContent = {
+              Privileges.makePriv(Privileges.privWriteContent)};
+
+      tryEvaluateAccess(named, owner, privSetWriteContent, encoded, true,
+                        "Named user in large acl");
+      tryEvaluateAccess(inGroup, owner, privSetRead(), encoded, true,
+                        "Group member in large acl");
+      tryEvaluateAccess(inGroup, owner, privSetWriteContent, encoded, false,
+                        "Group member write in large acl");
+      tryEvaluateAccess(outsider, owner, privSetRead(), encoded, false,
+                        "Outsider in large acl");
+    } catch (Throwable t) {
+      t.printStackTrace();
+      fail("Exception testing access: " + t.getMessage());
+    }
+  }
+
+  public void testBinaryAcl() {
+    try {
+      User owner = new User("binowner");
+      User named = new User("binuser");
+      User odd = new User("bin\uD800user");
+      User smiley = new User("bin\uD83D\uDE00");
+      User inGroup = new User("binmember");
+      inGroup.addGroup(new Group("bingroup"));
+      User outsider = new User("binoutsider");
+
+      Collection<Privilege> readPrivs = new ArrayList<Privilege>();
+      readPrivs.add(Privileges.makePriv(Privileges.privRead));
+
+      Collection<Privilege> writePrivs = new ArrayList<Privilege>();
+      writePrivs.add(Privileges.makePriv(Privileges.privWrite));
+
+      Collection<Privilege> noWritePrivs = new ArrayList<Privilege>();
+      noWritePrivs.add(Privileges.makePriv(Privileges.privWrite, true));
+
+      Collection<Ace> aces = new ArrayList<Ace>();
+      aces.add(Ace.makeAce(AceWho.getAceWho("binuser", Ace.whoTypeUser,
+                                            false),
+                           writePrivs, null));
+      aces.add(Ace.makeAce(AceWho.getAceWho("bin\uD800user",
+                                            Ace.whoTypeUser, false),
+                           readPrivs, null));
+      aces.add(Ace.makeAce(AceWho.getAceWho("bin\uD83D\uDE00",
+                                            Ace.whoTypeUser, false),
+                           readPrivs, "/inherited/\uDC00"));
+      aces.add(Ace.makeAce(AceWho.getAceWho("bingroup", Ace.whoTypeGroup,
+                                            false),
+                           readPrivs, "/inherited"));
+      aces.add(Ace.makeAce(AceWho.getAceWho("bingroup", Ace.whoTypeGroup,
+                                            true),
+                           noWritePrivs, null));
+      char[] named1 = new Acl(aces).encodeAll();
+
+      /* The same aces the other way round */
+      StringBuilder unsorted = new StringBuilder();
+      List<Ace> aceList = new ArrayList<Ace>(aces);
+      for (int i = aceList.size() - 1; i >= 0; i--) {
+        unsorted.append(new Acl(Collections.singletonList(aceList.get(i)))
+                                .encodeAll());
+      }
+
+      char[][] wellFormed = {named1, unsorted.toString().toCharArray()};
+      Privilege[][] hows = {privSetRead(),
+                            new Privilege[]{Privileges.makePriv(Privileges.privWrite)}};
+      User[] whos = {owner, named, odd, smiley, inGroup, outsider};
+      Access access = new Access();
+
+      for (char[] acl: wellFormed) {
+        byte[] bin = BinaryAcl.fromChars(acl);
+        assertTrue(BinaryAcl.isBinary(bin));
+        assertTrue(Arrays.equals(acl, BinaryAcl.toChars(bin)));
+
+        for (User who: whos) {
+          for (Privilege[] how: hows) {
+            assertEquals(new String(acl) + " " + who,
+                         access.evaluateAccess(new TestAccessCb(), who, owner,
+                                               how, acl, null)
+                               .getAccessAllowed(),
+                         access.evaluateAccess(new TestAccessCb(), who, owner,
+                                               how, bin, null)
+                               .getAccessAllowed());
+          }
+        }
+      }
+
+      tryEvaluateAccess(odd, owner, privSetRead(), named1, true,
+                        "Named user with a lone surrogate");
+
+      /* Malformed acls are held as their characters and still fail */
+      String[] malformed = {"garbage\uDC00", "u\uD800x", "\uD83D"};
+
+      for (String m: malformed) {
+        byte[] bin = BinaryAcl.fromChars(m.toCharArray());
+        assertFalse(BinaryAcl.isBinary(bin));
+        assertEquals(m, new String(BinaryAcl.toChars(bin)));
+
+        try {
+          access.evaluateAccess(new TestAccessCb(), outsider, owner,
+                                privSetRead(), bin, null);
+          fail("Expected an exception for " + m);
+        } catch (AccessException expected) {
+        }
+      }
+
+      /* Overflowing varint, bad UTF-8 and a truncated binary acl */
+      byte[] named1Bin = BinaryAcl.fromChars(named1);
+      byte[][] badBytes = {
+        {BinaryAcl.magic, 1, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff,
+         (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, 0x7f},
+        {(byte)0xff},
+        {'a', (byte)0xc3},
+        Arrays.copyOf(named1Bin, named1Bin.length - 1),
+      };
+
+      for (byte[] bad: badBytes) {
+        try {
+          BinaryAcl.toChars(bad);
+          fail("Expected an exception for " + Arrays.toString(bad));
+        } catch (AccessException expected) {
+        }
+
+        try {
+          access.evaluateAccess(new TestAccessCb(), outsider, owner,
+                                privSetRead(), bad, null);
+          fail("Expected an exception for " + Arrays.toString(bad));
+        } catch (AccessException expected) {
+        }
+      }
+    } catch (Throwable t) {
+      t.printStackTrace();
+      fail("Exception testing access: " + t.getMessage());
+    }
+  }
+
   /* ====================================================================
    *                       Private methods.
    * ==================================================================== */
@@ -211,6 +1327,85 @@ public class AccessTest extends TestCase {
     assertEquals(title, expected, ca.getAccessAllowed());
   }
 
+  private Privilege[] privSetRead() {
+    return new Privilege[]{Privileges.makePriv(Privileges.privRead)};
+  }
+
+  private Collection<Privilege> readPrivs() {
+    Collection<Privilege> readPrivs = new ArrayList<Privilege>();
+    readPrivs.add(Privileges.makePriv(Privileges.privRead));
+
+    return readPrivs;
+  }
+
+  /* Read for everybody */
+  private char[] readableAcl() throws Throwable {
+    Collection<Ace> aces = new ArrayList<Ace>();
+    aces.add(Ace.makeAce(AceWho.other, readPrivs(), null));
+
+    return new Acl(aces).encode();
+  }
+
+  /* Read for "someoneelse" only */
+  private char[] notReadableAcl() throws Throwable {
+    Collection<Ace> aces = new ArrayList<Ace>();
+    aces.add(Ace.makeAce(AceWho.getAceWho("someoneelse",
+                                          WhoDefs.whoTypeUser, false),
+                         readPrivs(), null));
+
+    return new Acl(aces).encode();
+  }
+
+  /* 500 acls - every third, starting at 1, not readable */
+  private List<char[]> manyAcls() throws Throwable {
+    char[] readable = readableAcl();
+    char[] notReadable = notReadableAcl();
+    List<char[]> manyAcls = new ArrayList<char[]>();
+
+    for (int i = 0; i < 500; i++) {
+      manyAcls.add((i % 3 == 1) ? notReadable : readable);
+    }
+
+    return manyAcls;
+  }
+
+  private long statValue(String name) {
+    for (AccessStatsEntry ase: Access.getStatistics()) {
+      if (ase.name.equals(name)) {
+        return ase.count;
+      }
+    }
+
+    fail("No statistic " + name);
+    return 0;
+  }
+
+  /* Subscribe to the publisher and collect everything it publishes */
+  private <T> CompletableFuture<List<T>> collect(Flow.Publisher<T> publisher) {
+    final CompletableFuture<List<T>> res = new CompletableFuture<List<T>>();
+    final List<T> items = new ArrayList<T>();
+
+    publisher.subscribe(new Flow.Subscriber<T>() {
+      public void onSubscribe(Flow.Subscription subscription) {
+        subscription.request(Long.MAX_VALUE);
+      }
+
+      public void onNext(T item) {
+        items.add(item);
+      }
+
+      public void onError(Throwable t) {
+        res.completeExceptionally(t);
+      }
+
+      public void onComplete() {
+        res.complete(items);
+      }
+    });
+
+    return res;
+  }
+
   private void tryDecode(char[] encoded, String title) throws Throwable {
     Acl acl = Acl.decode(encoded);
     log("Result of decoding " + title);